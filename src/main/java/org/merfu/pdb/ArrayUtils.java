@@ -47,6 +47,28 @@ class ArrayUtils {
         return -(low + 1);  // key not found.
 	}
 	
+	public static int binarySearchFirst(long[] keys, int fromIndex, int toIndex, long key) {
+		
+        int low = fromIndex;
+        int high = toIndex - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midVal = keys[mid];
+
+            if (midVal < key)
+                low = mid + 1;
+            else if (midVal > key)
+                high = mid - 1;
+            else {
+            	while(--mid >= 0 && keys[mid] == key);
+            	
+            	return mid + 1; // first key found
+            }
+        }
+        return -(low + 1);  // key not found.
+	}
+	
 	public static <E, T extends Comparable<T>> int binarySearchLast(E[] elements, int fromIndex, int toIndex, T key, Function<E, T> converter) {
 		
         int low = fromIndex;
@@ -0,0 +1,360 @@
+package org.merfu.pdb;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A data file stored in independently compressed blocks.
+ *
+ * The file starts with a magic number that no text file starts with, followed by the blocks of {@link #BLOCK_SIZE}
+ * bytes of the data compressed with {@link Deflater}, the file position of each block and of the end of the last
+ * block, and a trailer with the uncompressed size, the block size and the number of blocks. The file index entries
+ * keep the positions of the records in the uncompressed data, a position is found in the block at the position divided
+ * by the block size. The last decompressed blocks are cached.
+ */
+class CompressedDataFile {
+
+	static int BLOCK_SIZE = 64 * 1024;
+
+	private static long MAGIC = 0x0050_4442_5a00_0001L;
+	private static int TRAILER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+	private static int CACHED_BLOCKS = 64;
+
+	private static Map<Path, CompressedDataFile> pathToFileMap = DatabaseSupport.softValuesMap();
+	private static Map<SimpleImmutableEntry<Path, Integer>, byte[]> blockCache = new LinkedHashMap<>(CACHED_BLOCKS, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<SimpleImmutableEntry<Path, Integer>, byte[]> eldest) {
+			return size() > CACHED_BLOCKS;
+		}
+	};
+
+	private Path path;
+	private long size;
+	private int blockSize;
+	private long[] blockPositions;
+
+	private CompressedDataFile(Path path, long size, int blockSize, long[] blockPositions) {
+		this.path = path;
+		this.size = size;
+		this.blockSize = blockSize;
+		this.blockPositions = blockPositions;
+	}
+
+	/**
+	 * Replaces a data file with its compressed form.
+	 *
+	 * @param dataFilePath The data file path
+	 * @throws IOException if an I/O error occurs when reading the data file or writing the compressed file
+	 */
+	public static void compress(Path dataFilePath) throws IOException {
+
+		if(isCompressed(dataFilePath))
+			return;
+
+		Path tempDataFilePath = DatabaseSupport.temporaryPath(dataFilePath);
+		try(InputStream input = Files.newInputStream(dataFilePath);
+				DataOutputStream output = new DataOutputStream(Files.newOutputStream(tempDataFilePath))) {
+
+			output.writeLong(MAGIC);
+
+			Deflater deflater = new Deflater();
+			try {
+				byte[] block = new byte[BLOCK_SIZE];
+				byte[] compressedBlock = new byte[BLOCK_SIZE];
+				long[] blockPositions = new long[16];
+				int blockCount = 0;
+				long size = 0;
+
+				for(int length = input.readNBytes(block, 0, block.length); length > 0; length = input.readNBytes(block, 0, block.length)) {
+					if(blockCount == blockPositions.length)
+						blockPositions = Arrays.copyOf(blockPositions, blockCount * 2);
+					blockPositions[blockCount++] = output.size();
+
+					deflater.reset();
+					deflater.setInput(block, 0, length);
+					deflater.finish();
+					while(!deflater.finished())
+						output.write(compressedBlock, 0, deflater.deflate(compressedBlock));
+
+					size += length;
+				}
+
+				long tablePosition = output.size();
+				for(int i = 0; i < blockCount; i++)
+					output.writeLong(blockPositions[i]);
+				output.writeLong(tablePosition);
+
+				output.writeLong(size);
+				output.writeInt(BLOCK_SIZE);
+				output.writeInt(blockCount);
+			}
+			finally {
+				deflater.end();
+			}
+		}
+		catch(IOException e) {
+			Files.deleteIfExists(tempDataFilePath);
+			throw new IOException("Failed to compress data file " + dataFilePath.toString(), e);
+		}
+
+		Files.move(tempDataFilePath, dataFilePath, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public static boolean isCompressed(Path dataFilePath) throws IOException {
+
+		try(FileChannel channel = FileChannel.open(dataFilePath)) {
+			return isCompressed(channel);
+		}
+	}
+
+	static boolean isCompressed(FileChannel channel) throws IOException {
+
+		if(channel.size() < Long.BYTES + TRAILER_SIZE)
+			return false;
+
+		ByteBuffer magic = ByteBuffer.allocate(Long.BYTES);
+		read(channel, magic, 0);
+
+		return magic.getLong(0) == MAGIC;
+	}
+
+	/**
+	 * Returns the uncompressed size of a data file.
+	 *
+	 * @param dataFilePath The data file path
+	 * @return The size of the data
+	 * @throws IOException if an I/O error occurs when reading the data file
+	 */
+	public static long size(Path dataFilePath) throws IOException {
+
+		try(FileChannel channel = FileChannel.open(dataFilePath)) {
+			return isCompressed(channel) ? open(dataFilePath, channel).size : channel.size();
+		}
+	}
+
+	/**
+	 * Opens a data file for reading the data in sequence, decompressing the data if the file is compressed.
+	 *
+	 * @param dataFilePath The data file path
+	 * @return The data stream
+	 * @throws IOException if an I/O error occurs when opening the data file
+	 */
+	public static InputStream newInputStream(Path dataFilePath) throws IOException {
+
+		FileChannel channel = FileChannel.open(dataFilePath);
+		try {
+			if(!isCompressed(channel)) {
+				channel.close();
+				return Files.newInputStream(dataFilePath);
+			}
+
+			return new BlocksInputStream(open(dataFilePath, channel), channel);
+		}
+		catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Drops the blocks of a deleted data file from the cache.
+	 *
+	 * @param dataFilePath The data file path
+	 */
+	public static void evict(Path dataFilePath) {
+
+		pathToFileMap.remove(dataFilePath);
+		synchronized(blockCache) {
+			blockCache.keySet().removeIf(key -> key.getKey().equals(dataFilePath));
+		}
+	}
+
+	/**
+	 * Drops the blocks of the data files of a deleted database from the cache.
+	 *
+	 * @param databasePath The database path
+	 */
+	public static void evictAll(Path databasePath) {
+
+		pathToFileMap.keySet().removeIf(path -> path.startsWith(databasePath));
+		synchronized(blockCache) {
+			blockCache.keySet().removeIf(key -> key.getKey().startsWith(databasePath));
+		}
+	}
+
+	/**
+	 * Loads the block table of a compressed data file.
+	 */
+	static CompressedDataFile open(Path dataFilePath, FileChannel channel) throws IOException {
+
+		CompressedDataFile compressedDataFile = pathToFileMap.get(dataFilePath);
+		if(compressedDataFile != null)
+			return compressedDataFile;
+
+		try {
+			ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+			read(channel, trailer, channel.size() - TRAILER_SIZE);
+			long size = trailer.getLong();
+			int blockSize = trailer.getInt();
+			int blockCount = trailer.getInt();
+
+			ByteBuffer table = ByteBuffer.allocate((blockCount + 1) * Long.BYTES);
+			read(channel, table, channel.size() - TRAILER_SIZE - table.capacity());
+			long[] blockPositions = new long[blockCount + 1];
+			table.asLongBuffer().get(blockPositions);
+
+			compressedDataFile = new CompressedDataFile(dataFilePath, size, blockSize, blockPositions);
+		}
+		catch(IOException | RuntimeException e) {
+			throw new IOException("Failed to read the block table of data file " + dataFilePath.toString(), e);
+		}
+
+		pathToFileMap.put(dataFilePath, compressedDataFile);
+		return compressedDataFile;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * Reads a range of the uncompressed data.
+	 *
+	 * @param channel The data file channel
+	 * @param start The start position in the uncompressed data
+	 * @param end The end position in the uncompressed data
+	 * @return The data in the range
+	 * @throws IOException if an I/O error occurs when reading the data file
+	 */
+	byte[] read(FileChannel channel, long start, long end) throws IOException {
+
+		byte[] data = new byte[(int) (end - start)];
+		for(long position = start; position < end;) {
+			int block = (int) (position / blockSize);
+			int blockOffset = (int) (position % blockSize);
+
+			byte[] blockData = readBlock(channel, block);
+			int length = (int) Math.min(blockData.length - blockOffset, end - position);
+			System.arraycopy(blockData, blockOffset, data, (int) (position - start), length);
+
+			position += length;
+		}
+
+		return data;
+	}
+
+	private byte[] readBlock(FileChannel channel, int block) throws IOException {
+
+		SimpleImmutableEntry<Path, Integer> key = new SimpleImmutableEntry<>(path, block);
+		synchronized(blockCache) {
+			byte[] blockData = blockCache.get(key);
+			if(blockData != null)
+				return blockData;
+		}
+
+		byte[] blockData = inflateBlock(channel, block);
+		synchronized(blockCache) {
+			blockCache.put(key, blockData);
+		}
+
+		return blockData;
+	}
+
+	private byte[] inflateBlock(FileChannel channel, int block) throws IOException {
+
+		ByteBuffer compressedBlock = ByteBuffer.allocate((int) (blockPositions[block + 1] - blockPositions[block]));
+		read(channel, compressedBlock, blockPositions[block]);
+
+		byte[] blockData = new byte[(int) Math.min(blockSize, size - (long) block * blockSize)];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressedBlock.array());
+			int length = 0;
+			while(length < blockData.length && !inflater.finished())
+				length += inflater.inflate(blockData, length, blockData.length - length);
+		}
+		catch(DataFormatException e) {
+			throw new IOException("Corrupted block " + block + " in data file " + path.toString(), e);
+		}
+		finally {
+			inflater.end();
+		}
+
+		return blockData;
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file");
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Decompresses the blocks in sequence without caching them.
+	 */
+	private static class BlocksInputStream extends InputStream {
+
+		private CompressedDataFile compressedDataFile;
+		private FileChannel channel;
+		private int nextBlock;
+		private byte[] blockData;
+		private int blockOffset;
+
+		BlocksInputStream(CompressedDataFile compressedDataFile, FileChannel channel) {
+			this.compressedDataFile = compressedDataFile;
+			this.channel = channel;
+			blockData = new byte[0];
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if(len == 0)
+				return 0;
+
+			if(blockOffset == blockData.length) {
+				if(nextBlock == compressedDataFile.blockPositions.length - 1)
+					return -1;
+
+				blockData = compressedDataFile.inflateBlock(channel, nextBlock++);
+				blockOffset = 0;
+			}
+
+			int length = Math.min(len, blockData.length - blockOffset);
+			System.arraycopy(blockData, blockOffset, b, off, length);
+			blockOffset += length;
+
+			return length;
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
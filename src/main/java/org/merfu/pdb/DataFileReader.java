@@ -0,0 +1,62 @@
+package org.merfu.pdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Reads the records of a data file at their positions in the data, decompressing the blocks of the compressed data
+ * files. The data file is opened when the first record is read.
+ */
+class DataFileReader implements Closeable {
+
+	private Path dataFilePath;
+	private FileChannel channel;
+	private CompressedDataFile compressedDataFile;
+
+	public DataFileReader(Path dataFilePath) {
+		this.dataFilePath = dataFilePath;
+	}
+
+	private void open() throws IOException {
+
+		channel = FileChannel.open(dataFilePath);
+		try {
+			if(CompressedDataFile.isCompressed(channel))
+				compressedDataFile = CompressedDataFile.open(dataFilePath, channel);
+		}
+		catch(IOException | RuntimeException e) {
+			channel.close();
+			channel = null;
+			throw e;
+		}
+	}
+
+	public String readRecord(FileIndexEntry recordIndexEntry) throws IOException {
+
+		long recordStart = recordIndexEntry.getRecordStart();
+		long recordEnd = recordIndexEntry.getRecordEnd();
+		if(channel == null)
+			open();
+
+		if(compressedDataFile != null)
+			return new String(compressedDataFile.read(channel, recordStart, recordEnd), StandardCharsets.UTF_8);
+
+		ByteBuffer byteBuffer = ByteBuffer.allocate((int)(recordEnd - recordStart));
+		while (byteBuffer.hasRemaining()) {
+			if(channel.read(byteBuffer, recordStart + byteBuffer.position()) < 0)
+				throw new IOException("Unexpected end of data file");
+		}
+
+		return new String(byteBuffer.array(), StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(channel != null)
+			channel.close();
+	}
+}
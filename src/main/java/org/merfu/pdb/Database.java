@@ -7,9 +7,12 @@ import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -28,11 +31,17 @@ public class Database implements Closeable {
 
 	private Map<String, DatabaseIndex> indexNameToDatabaseIndexMap;
 
-	private int readersCount;
-	private Database nextDatabase;
+	/**
+	 * The readers of this database including the container while this is the current database. The count does not
+	 * change once it drops to zero.
+	 */
+	private AtomicInteger readersCount;
+	private volatile Database nextDatabase;
 
 	private AtomicLong transactionId;
 
+	private volatile Map<String, String> basenameToFileNameMap;
+
 	Database(Pdb pdb, Path databasePath, long commit) {
 
 		this.pdb = pdb;
@@ -42,7 +51,7 @@ public class Database implements Closeable {
 		indexNameToDatabaseIndexMap = DatabaseSupport.softValuesMap();
 		
 		transactionId = new AtomicLong();
-		readersCount = 1;
+		readersCount = new AtomicInteger(1);
 	}
 
 	/**
@@ -63,6 +72,95 @@ public class Database implements Closeable {
 		return databaseIndex.lookup(keys.stream().sorted(Comparator.naturalOrder()), keyIndex);
 	}
 	
+	/**
+	 * Executes an indexed search of this database for the greatest key not greater than each key, for example the
+	 * start of the range holding each key in an index of ranges. The records of the found key are returned with each
+	 * key resolved to it, the found key being the matched key of the records, see {@link MatchedRecord#getMatchedKey()}.
+	 * 
+	 * @param <K> Key type that must implements the Comparable interface
+	 * @param indexName The name of an index provided in {@link Pdb}
+	 * @param keys The list of keys 
+	 * @return The records of the floor keys of the keys in the input
+	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws UnsupportedOperationException if the index is a hash index
+	 */
+	public <K extends Comparable<K>> Stream<MatchedRecord<K>> lookupFloor(String indexName, List<K> keys) throws IOException {
+		return lookupNearest(indexName, keys, true);
+	}
+
+	/**
+	 * Executes an indexed search of this database for the least key not less than each key. The records of the found
+	 * key are returned with each key resolved to it, the found key being the matched key of the records, see
+	 * {@link MatchedRecord#getMatchedKey()}.
+	 * 
+	 * @param <K> Key type that must implements the Comparable interface
+	 * @param indexName The name of an index provided in {@link Pdb}
+	 * @param keys The list of keys 
+	 * @return The records of the ceiling keys of the keys in the input
+	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws UnsupportedOperationException if the index is a hash index
+	 */
+	public <K extends Comparable<K>> Stream<MatchedRecord<K>> lookupCeiling(String indexName, List<K> keys) throws IOException {
+		return lookupNearest(indexName, keys, false);
+	}
+
+	private <K extends Comparable<K>> Stream<MatchedRecord<K>> lookupNearest(String indexName, List<K> keys, boolean floor) throws IOException {
+
+		@SuppressWarnings("unchecked")
+		KeyIndex<K> keyIndex = (KeyIndex<K>) pdb.keyNameToKeyIndexMap.get(indexName);
+
+		checkOrdered(keyIndex);
+		DatabaseIndex databaseIndex = getIndex(indexName);
+
+		return databaseIndex.lookupNearest(keys.stream().sorted(Comparator.naturalOrder()), keyIndex, floor);
+	}
+
+	/**
+	 * Executes an indexed search of a {@link LongIndex} of this database. The keys are sorted and searched as primitive
+	 * values and boxed only in the returned records.
+	 * 
+	 * @param indexName The name of a long index provided in {@link Pdb}
+	 * @param keys The keys
+	 * @return The records matching the keys in the input
+	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws IllegalArgumentException if the index is not a long index
+	 */
+	public Stream<MatchedRecord<Long>> lookup(String indexName, LongStream keys) throws IOException {
+
+		if(!(pdb.keyNameToKeyIndexMap.get(indexName) instanceof LongIndex keyIndex))
+			throw new IllegalArgumentException("Index " + indexName + " is not a long index");
+		DatabaseIndex databaseIndex = getIndex(indexName);
+
+		return databaseIndex.lookup(keys.sorted().toArray(), keyIndex);
+	}
+
+	/**
+	 * Executes an indexed search of this database returning only fields covered by the index, see
+	 * {@link KeyIndex#getCoveredFields()}. The fields are read from the file indexes without reading the data files
+	 * except for the records indexed before the index covered the fields.
+	 * 
+	 * @param <K> Key type that must implements the Comparable interface
+	 * @param indexName The name of an index provided in {@link Pdb}
+	 * @param keys The list of keys 
+	 * @param fieldNames The names of the covered fields returned
+	 * @return The fields of the records matching the keys in the input, see {@link MatchedRecord#getFields()}
+	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws IllegalArgumentException if a field is not covered by the index
+	 */
+	public <K extends Comparable<K>> Stream<MatchedRecord<K>> lookup(String indexName, List<K> keys, List<String> fieldNames) throws IOException {
+
+		@SuppressWarnings("unchecked")
+		KeyIndex<K> keyIndex = (KeyIndex<K>) pdb.keyNameToKeyIndexMap.get(indexName);
+		for(String fieldName: fieldNames) {
+			if(!keyIndex.getCoveredFields().contains(fieldName))
+				throw new IllegalArgumentException("Field " + fieldName + " is not covered by index " + indexName);
+		}
+
+		DatabaseIndex databaseIndex = getIndex(indexName);
+		
+		return databaseIndex.lookup(keys.stream().sorted(Comparator.naturalOrder()), keyIndex, fieldNames);
+	}
+	
 	/**
 	 * Executes an indexed search of this database returning the records in index order.
 	 * 
@@ -70,12 +168,14 @@ public class Database implements Closeable {
 	 * @param indexName The name of an index provided in {@link Pdb}
 	 * @return The index ordered records
 	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws UnsupportedOperationException if the index is a hash index
 	 */
 	public <K extends Comparable<K>> Stream<MatchedRecord<K>> streamOrdered(String indexName) throws IOException {
 
 		@SuppressWarnings("unchecked")
 		KeyIndex<K> keyIndex = (KeyIndex<K>) pdb.keyNameToKeyIndexMap.get(indexName);
 
+		checkOrdered(keyIndex);
 		DatabaseIndex databaseIndex = getIndex(indexName);
 
 		return databaseIndex.streamOrdered(keyIndex);
@@ -88,12 +188,14 @@ public class Database implements Closeable {
 	 * @param indexName The name of an index provided in {@link Pdb}
 	 * @return The index reverse ordered records
 	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws UnsupportedOperationException if the index is a hash index
 	 */
 	public <K extends Comparable<K>> Stream<MatchedRecord<K>> streamReversed(String indexName) throws IOException {
 
 		@SuppressWarnings("unchecked")
 		KeyIndex<K> keyIndex = (KeyIndex<K>) pdb.keyNameToKeyIndexMap.get(indexName);
 
+		checkOrdered(keyIndex);
 		DatabaseIndex databaseIndex = getIndex(indexName);
 
 		return databaseIndex.streamReversed(keyIndex);
@@ -107,12 +209,14 @@ public class Database implements Closeable {
 	 * @param greaterThan The index search starts above this key value
 	 * @return The index ordered records that are greater than the provided key value
 	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws UnsupportedOperationException if the index is a hash index
 	 */
 	public <K extends Comparable<K>> Stream<MatchedRecord<K>> streamOrdered(String indexName, K greaterThan) throws IOException {
 
 		@SuppressWarnings("unchecked")
 		KeyIndex<K> keyIndex = (KeyIndex<K>) pdb.keyNameToKeyIndexMap.get(indexName);
 
+		checkOrdered(keyIndex);
 		DatabaseIndex databaseIndex = getIndex(indexName);
 
 		return databaseIndex.streamOrdered(keyIndex, greaterThan);
@@ -126,17 +230,24 @@ public class Database implements Closeable {
 	 * @param lessThan The index search starts below this key value
 	 * @return The index ordered records that are less than the provided key value
 	 * @throws IOException if an I/O error occurs when reading files
+	 * @throws UnsupportedOperationException if the index is a hash index
 	 */
 	public <K extends Comparable<K>> Stream<MatchedRecord<K>> streamReversed(String indexName, K lessThan) throws IOException {
 
 		@SuppressWarnings("unchecked")
 		KeyIndex<K> keyIndex = (KeyIndex<K>) pdb.keyNameToKeyIndexMap.get(indexName);
 
+		checkOrdered(keyIndex);
 		DatabaseIndex databaseIndex = getIndex(indexName);
 
 		return databaseIndex.streamReversed(keyIndex, lessThan);
 	}
 
+	private void checkOrdered(KeyIndex<?> keyIndex) {
+		if(keyIndex instanceof HashIndex)
+			throw new UnsupportedOperationException("Index " + keyIndex.getName() + " is a hash index and supports only point lookups");
+	}
+
 	/**
 	 * Starts a transaction to update the database.
 	 * 
@@ -174,7 +285,7 @@ public class Database implements Closeable {
 					DatabaseIndex databaseIndex;
 
 					logger.debug("Start loading database index {} for database {}", name, databasePath.toString());
-					databaseIndex = new DatabaseIndexLoader().load(name, databasePath, commit).internFields();
+					databaseIndex = new DatabaseIndexLoader().load(pdb.getKeyIndex(name), databasePath, commit, pdb.getIndexPartitions()).internFields();
 					logger.debug("Completed loading database index {} for database {}", name, databasePath.toString());
 
 					return databaseIndex;
@@ -188,6 +299,31 @@ public class Database implements Closeable {
 		}
 	}
 
+	/**
+	 * Returns the versioned name of the current version of a data file in this database.
+	 * 
+	 * @param fileName The data file name without version
+	 * @return The versioned data file name or null when the file is not in this database
+	 * @throws IOException if an I/O error occurs when reading the file indexes
+	 */
+	String getVersionedFileName(String fileName) throws IOException {
+
+		Map<String, String> basenameToFileNameMap = this.basenameToFileNameMap;
+		if(basenameToFileNameMap == null) {
+			FileSystem fileSystem = databasePath.getFileSystem();
+
+			basenameToFileNameMap = new HashMap<>();
+			for(String indexName: pdb.keyNameToKeyIndexMap.keySet()) {
+				for(String versionedFileName: DatabaseIndexLayers.load(databasePath, indexName, commit).loadLiveFileNames())
+					basenameToFileNameMap.put(new VersionFile(fileSystem.getPath(versionedFileName)).getBasename(), versionedFileName);
+			}
+
+			this.basenameToFileNameMap = basenameToFileNameMap;
+		}
+
+		return basenameToFileNameMap.get(fileName);
+	}
+
 	Path getDatabasePath() {
 		return databasePath;
 	}
@@ -207,76 +343,41 @@ public class Database implements Closeable {
 		this.transactionId = transactionId;
 	}
 
-	synchronized Database readLock() {
-		readersCount++;
+	/**
+	 * Adds a reader to a database that is known to have readers.
+	 */
+	Database readLock() {
+		readersCount.incrementAndGet();
 		
 		return this;
 	}
 
-	synchronized void readUnlock() throws IOException  {
+	/**
+	 * Adds a reader to this database unless its last reader was released.
+	 * 
+	 * @return True if the reader was added
+	 */
+	boolean tryReadLock() {
+		for(int count = readersCount.get(); count != 0; count = readersCount.get()) {
+			if(readersCount.compareAndSet(count, count + 1))
+				return true;
+		}
 
-		readersCount--;
-		if(readersCount == 0) {
+		return false;
+	}
 
-			Path removeFilesPath = DatabaseSupport.getDatabaseRemoveFilesIndexPath(databasePath, commit);
-			if(Files.exists(removeFilesPath)) {
+	/**
+	 * Releases a reader of this database. The files replaced by the next commit are reclaimed in background once the
+	 * last reader is released.
+	 */
+	void readUnlock() throws IOException  {
 
-				try {
-					for(String indexName: pdb.keyNameToKeyIndexMap.keySet()) {
-						Path indexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, commit);
-						Files.deleteIfExists(indexPath);
-
-						Path fileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, commit);
-						Files.deleteIfExists(fileIndexPath);
-					}
-
-					Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
-					try {
-						FileSystem fileSystem = databasePath.getFileSystem();
-						Files.lines(removeFilesPath).forEach(relativeFileName -> {
-							Path relativeFilePath = fileSystem.getPath(relativeFileName);
-
-							for(String indexName: pdb.keyNameToKeyIndexMap.keySet()) {
-								Path fileIndexPath = DatabaseSupport.getFileIndexPath(databasePath, relativeFilePath, indexName);
-
-								try {
-									Files.deleteIfExists(fileIndexPath);
-								} catch (IOException e) {
-									throw new UncheckedIOException(new IOException("Failed to remove index file " + fileIndexPath.toString(), e));
-								}
-							}
-
-							try {
-								Files.deleteIfExists(DatabaseSupport.getDatabaseDataIndexDirectoryPath(databasePath).resolve(relativeFilePath));
-								Files.deleteIfExists(dataPath.resolve(relativeFilePath));
-							} catch (IOException e) {
-								throw new UncheckedIOException(new IOException("Failed to remove file " + relativeFilePath.toString(), e));
-							}
-						});
-					} catch (UncheckedIOException e) {
-						throw e.getCause();
-					}
-					catch (IOException e) {
-						throw new IOException("Failed to read file " + removeFilesPath.toString(), e);
-					}
-
-					try {
-						Files.delete(removeFilesPath);
-					} catch (IOException e) {
-						throw new IOException("Failed to remove file " + removeFilesPath.toString(), e);
-					}
-					
-					Files.delete(DatabaseSupport.getDatabaseCommitPath(databasePath, commit));
-				}
-				finally {
-					nextDatabase.readUnlock();
-				}
-			}
-			else if(pdb.isDatabaseDeleted(databasePath))
-					DatabaseSupport.deleteDatabaseDirectories(databasePath);
-			else
-				Files.delete(DatabaseSupport.getDatabaseCommitPath(databasePath, commit));
-		}
+		if(readersCount.decrementAndGet() == 0)
+			pdb.reclaimer.reclaim(this);
+	}
+
+	Database getNextDatabase() {
+		return nextDatabase;
 	}
 
 	@Override
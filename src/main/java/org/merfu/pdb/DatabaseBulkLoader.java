@@ -0,0 +1,139 @@
+package org.merfu.pdb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the files of a source directory in a new database as its first commit.
+ *
+ * The files are linked or copied straight to their commit 1 names in the database data directory and indexed in
+ * the same pass, the files being loaded concurrently on the work executor. The database indexes are created from the
+ * file indexes without reading the data files again. When the file indexes are packed they are written from memory
+ * to the segment of the commit.
+ */
+class DatabaseBulkLoader {
+
+	static private Logger logger = LoggerFactory.getLogger(DatabaseBulkLoader.class);
+
+	private Pdb pdb;
+	private Path databasePath;
+	private long commit;
+
+	DatabaseBulkLoader(Pdb pdb, Path databasePath, long commit) {
+		this.pdb = pdb;
+		this.databasePath = databasePath;
+		this.commit = commit;
+	}
+
+	/**
+	 * Loads the source files and creates the database indexes of the commit.
+	 *
+	 * @param sourcePath The source directory root
+	 * @param link Copy or hard link
+	 * @return The names of the indexed data files of the commit
+	 * @throws IOException if an I/O error occurs when reading or writing the file system
+	 */
+	public Set<String> load(Path sourcePath, boolean link) throws IOException {
+
+		List<Path> files;
+		try(Stream<Path> paths = Files.walk(sourcePath)) {
+			files = paths.filter(Files::isRegularFile).toList();
+		}
+
+		logger.debug("Starting loading {} files from {} under {}...", files.size(), sourcePath.toString(), databasePath.toString());
+		List<Callable<List<FileIndex>>> loadTasks = new ArrayList<>();
+		for(Path file: files)
+			loadTasks.add(() -> load(file, sourcePath.relativize(file), link));
+
+		List<FileIndex> fileIndexes = new ArrayLinkedList<>();
+		DatabaseSupport.invokeAll(loadTasks).forEach(fileIndexes::addAll);
+		logger.debug("Completed loading {} files from {} under {}", files.size(), sourcePath.toString(), databasePath.toString());
+
+		if(pdb.isPackedFileIndexes()) {
+			try(FileIndexSegmentWriter segmentWriter = new FileIndexSegmentWriter(DatabaseSupport.getDatabaseFileIndexSegmentPath(databasePath, commit))) {
+				for(FileIndex fileIndex: fileIndexes)
+					segmentWriter.add(fileIndex.getDataFilePath().toString(), fileIndex.getIndexName(), fileIndex.getEntries());
+			}
+		}
+
+		new DatabaseIndexer(pdb, databasePath, commit).index(fileIndexes.stream());
+
+		return fileIndexes.stream().map(fileIndex -> fileIndex.getDataFilePath().toString()).collect(Collectors.toCollection(LinkedHashSet::new));
+	}
+
+	private List<FileIndex> load(Path sourceFilePath, Path sourceRelativePath, boolean link) throws IOException {
+
+		FileSystem fileSystem = databasePath.getFileSystem();
+		Path relativeFilePath = fileSystem.getPath(sourceRelativePath.getName(0).toString());
+		for(int i = 1; i < sourceRelativePath.getNameCount(); i++)
+			relativeFilePath = relativeFilePath.resolve(sourceRelativePath.getName(i).toString());
+
+		Path versionedRelativeFilePath = fileSystem.getPath(relativeFilePath.toString() + "." + commit);
+		Path dataFilePath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath).resolve(versionedRelativeFilePath);
+		Files.createDirectories(dataFilePath.getParent());
+
+		// the key indexes filter the database file names without version
+		KeyIndex<?>[] keyIndexes = DatabaseIndexer.filterKeyIndexes(pdb.keyIndexes, relativeFilePath);
+		if(keyIndexes.length == 0) {
+			if(link)
+				Files.createLink(dataFilePath, sourceFilePath);
+			else
+				Files.copy(sourceFilePath, dataFilePath);
+
+			return List.of();
+		}
+
+		MessageDigest digest = pdb.isContentDedup() ? DatabaseSupport.contentDigest() : null;
+		List<FileIndex> fileIndexes;
+		if(link) {
+			Files.createLink(dataFilePath, sourceFilePath);
+			fileIndexes = index(versionedRelativeFilePath, keyIndexes, Files.newInputStream(dataFilePath), OutputStream.nullOutputStream(), digest);
+		}
+		else {
+			try(OutputStream output = Files.newOutputStream(dataFilePath, StandardOpenOption.CREATE_NEW)) {
+				fileIndexes = index(versionedRelativeFilePath, keyIndexes, Files.newInputStream(sourceFilePath), output, digest);
+			}
+		}
+
+		if(digest != null) {
+			Path contentHashPath = DatabaseSupport.getFileContentHashPath(databasePath, versionedRelativeFilePath);
+			Files.createDirectories(contentHashPath.getParent());
+			Files.writeString(contentHashPath, HexFormat.of().formatHex(digest.digest()));
+		}
+
+		if(pdb.isCompressedDataFiles())
+			CompressedDataFile.compress(dataFilePath);
+
+		return fileIndexes;
+	}
+
+	private List<FileIndex> index(Path versionedRelativeFilePath, KeyIndex<?>[] keyIndexes, InputStream fileInput, OutputStream output,
+			MessageDigest digest) throws IOException {
+
+		try(InputStream input = digest == null ? fileInput : new DigestInputStream(fileInput, digest)) {
+			TeeInputStream teeInput = new TeeInputStream(input, output);
+			List<FileIndex> fileIndexes = new FileIndexer(!pdb.isPackedFileIndexes()).index(databasePath, versionedRelativeFilePath, keyIndexes, teeInput).toList();
+			teeInput.drain();
+
+			return fileIndexes;
+		}
+	}
+}
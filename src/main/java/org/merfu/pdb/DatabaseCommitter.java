@@ -0,0 +1,239 @@
+package org.merfu.pdb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Combines the transactions committed concurrently to the same database in group commits.
+ *
+ * The transactions committed while the commit of a previous group is in flight, or within the group commit window,
+ * are merged in a single commit. The first committer of a group merges the group on behalf of the others and every
+ * committer of the group is released when the group commit completes.
+ */
+class DatabaseCommitter {
+
+	static private Logger logger = LoggerFactory.getLogger(DatabaseCommitter.class);
+
+	private Pdb pdb;
+	private long groupCommitWindow;
+	private Map<String, Queue<PendingCommit>> databaseNameToPendingCommitsMap;
+
+	DatabaseCommitter(Pdb pdb) {
+		this.pdb = pdb;
+		databaseNameToPendingCommitsMap = new ConcurrentHashMap<>();
+	}
+
+	void setGroupCommitWindow(long groupCommitWindow) {
+		this.groupCommitWindow = groupCommitWindow;
+	}
+
+	/**
+	 * Commits an indexed transaction together with the transactions committed concurrently to the same database.
+	 *
+	 * @param databaseName The database name
+	 * @param databasePath The database path
+	 * @param txPath The transaction path
+	 * @return The database at the group commit
+	 * @throws IOException if an I/O error occurs when committing the group
+	 */
+	Database commit(String databaseName, Path databasePath, Path txPath) throws IOException {
+
+		PendingCommit pendingCommit = new PendingCommit(txPath);
+
+		Queue<PendingCommit> pendingCommits = databaseNameToPendingCommitsMap.computeIfAbsent(databaseName, name -> new ConcurrentLinkedQueue<>());
+		pendingCommits.add(pendingCommit);
+
+		synchronized(pendingCommits) {
+			// the window is a timed wait so that the transactions committed meanwhile enter the group
+			long windowEnd = System.nanoTime() + groupCommitWindow * 1_000_000L;
+			for(long window = groupCommitWindow; window > 0 && !pendingCommit.future.isDone(); window = (windowEnd - System.nanoTime()) / 1_000_000L) {
+				try {
+					pendingCommits.wait(window);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			if(!pendingCommit.future.isDone()) {
+				List<PendingCommit> group = new ArrayList<>();
+				for(PendingCommit next = pendingCommits.poll(); next != null; next = pendingCommits.poll())
+					group.add(next);
+
+				try {
+					Database database = commit(databaseName, databasePath, group);
+					group.forEach(next -> next.future.complete(database));
+				}
+				catch(IOException | RuntimeException e) {
+					group.forEach(next -> next.future.completeExceptionally(e));
+				}
+				pendingCommits.notifyAll();
+			}
+		}
+
+		try {
+			return pendingCommit.future.join();
+		}
+		catch(CompletionException e) {
+			if(e.getCause() instanceof IOException)
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+
+			throw e;
+		}
+	}
+
+	private Database commit(String databaseName, Path databasePath, List<PendingCommit> group) throws IOException {
+
+		List<Path> txPaths = group.stream().map(pendingCommit -> pendingCommit.txPath).toList();
+		if(txPaths.size() == 1)
+			return pdb.commitTransaction(databaseName, databasePath, txPaths.get(0), List.of());
+
+		logger.debug("Starting grouping {} transactions under {}...", txPaths.size(), databasePath.toString());
+		Path groupPath = DatabaseSupport.getDatabaseGroupDirectoryPath(databasePath);
+		try {
+			groupTransactions(groupPath, txPaths);
+		}
+		catch(IOException | RuntimeException e) {
+			DatabaseSupport.removeDirectory(groupPath);
+			throw e;
+		}
+		logger.debug("Completed grouping {} transactions under {}", txPaths.size(), databasePath.toString());
+
+		try {
+			return pdb.commitTransaction(databaseName, databasePath, groupPath, txPaths);
+		}
+		finally {
+			DatabaseSupport.removeDirectory(groupPath);
+		}
+	}
+
+	/**
+	 * Links the data files and the file indexes of the transactions in a new indexed transaction and merges the
+	 * transaction indexes. A data file written by more transactions is taken from the last one and a data file
+	 * deleted by a later transaction is dropped from the group.
+	 */
+	private void groupTransactions(Path groupPath, List<Path> txPaths) throws IOException {
+
+		DatabaseSupport.removeDirectory(groupPath);
+
+		// the recovery of the staged group does not commit the grouped transactions again
+		Path groupedTransactionsPath = DatabaseSupport.getDatabaseGroupedTransactionsPath(groupPath);
+		Files.createDirectories(groupedTransactionsPath.getParent());
+		Files.write(groupedTransactionsPath, txPaths.stream().map(txPath -> txPath.getFileName().toString()).toList());
+
+		Path groupDataPath = DatabaseSupport.getDatabaseDataDirectoryPath(groupPath);
+		Path groupDataIndexPath = DatabaseSupport.getDatabaseDataIndexDirectoryPath(groupPath);
+		Files.createDirectories(groupDataPath);
+
+		Map<String, Integer> fileNameToTxMap = new HashMap<>();
+		Set<String> groupDeletePaths = new LinkedHashSet<>();
+		for(int tx = 0; tx < txPaths.size(); tx++) {
+			Path txPath = txPaths.get(tx);
+			Path txDataPath = DatabaseSupport.getDatabaseDataDirectoryPath(txPath);
+			Path txDataIndexPath = DatabaseSupport.getDatabaseDataIndexDirectoryPath(txPath);
+
+			Set<String> deletePaths = DatabaseSupport.loadDeletePaths(txPath);
+			for(Map.Entry<String, Integer> entry: fileNameToTxMap.entrySet()) {
+				String fileName = entry.getKey();
+				if(entry.getValue() >= 0 && DatabaseSupport.isDeleted(deletePaths, fileName)) {
+					entry.setValue(-1);
+					Files.delete(groupDataPath.resolve(fileName));
+					DatabaseSupport.removeDirectory(groupDataIndexPath.resolve(fileName));
+				}
+			}
+			groupDeletePaths.addAll(deletePaths);
+
+			List<Path> relativeFilePaths = DatabaseManifest.loadDataFiles(txPath);
+			if(relativeFilePaths == null) {
+				try(Stream<Path> filePaths = Files.walk(txDataPath)) {
+					relativeFilePaths = filePaths.filter(Files::isRegularFile).map(txDataPath::relativize).toList();
+				}
+			}
+
+			for(Path relativeFilePath: relativeFilePaths) {
+				String fileName = relativeFilePath.toString();
+				fileNameToTxMap.put(fileName, tx);
+
+				Path groupFilePath = groupDataPath.resolve(fileName);
+				Files.createDirectories(groupFilePath.getParent());
+				DatabaseSupport.createLink(groupFilePath, txDataPath.resolve(fileName));
+
+				Path groupFileIndexDirectoryPath = groupDataIndexPath.resolve(fileName);
+				DatabaseSupport.removeDirectory(groupFileIndexDirectoryPath);
+
+				Path txFileIndexDirectoryPath = txDataIndexPath.resolve(fileName);
+				if(Files.isDirectory(txFileIndexDirectoryPath)) {
+					Files.createDirectories(groupFileIndexDirectoryPath);
+					try(Stream<Path> fileIndexPaths = Files.list(txFileIndexDirectoryPath)) {
+						for(Path fileIndexPath: fileIndexPaths.toList())
+							Files.createLink(groupFileIndexDirectoryPath.resolve(fileIndexPath.getFileName().toString()), fileIndexPath);
+					}
+				}
+			}
+		}
+
+		if(!groupDeletePaths.isEmpty()) {
+			Path groupDeleteFilesPath = DatabaseSupport.getDatabaseDeleteFilesPath(groupPath);
+			Files.createDirectories(groupDeleteFilesPath.getParent());
+			Files.write(groupDeleteFilesPath, groupDeletePaths);
+		}
+
+		for(KeyIndex<?> keyIndex: pdb.keyIndexes)
+			mergeTransactionIndexes(keyIndex, groupPath, txPaths, fileNameToTxMap);
+	}
+
+	private <K extends Comparable<K>> void mergeTransactionIndexes(KeyIndex<K> keyIndex, Path groupPath, List<Path> txPaths,
+			Map<String, Integer> fileNameToTxMap) throws IOException {
+
+		String indexName = keyIndex.getName();
+
+		List<DatabaseIndexReader> readers = new ArrayList<>();
+		try {
+			DatabaseIndexMerger<K> merger = new DatabaseIndexMerger<>(keyIndex);
+			for(int tx = 0; tx < txPaths.size(); tx++) {
+				int readerTx = tx;
+				DatabaseIndexReader reader = new DatabaseIndexReader(txPaths.get(tx), indexName, 0);
+				readers.add(reader);
+
+				merger.add(reader, fileName -> fileNameToTxMap.getOrDefault(fileName, readerTx) == readerTx ? fileName : null);
+			}
+
+			merger.merge(DatabaseSupport.getDatabaseIndexPath(groupPath, indexName, 0),
+					DatabaseSupport.getDatabaseFileIndexPath(groupPath, indexName, 0),
+					DatabaseSupport.getDatabaseIndexFencesPath(groupPath, indexName, 0), pdb.getFenceInterval());
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to group index " + indexName + " under " + groupPath, e);
+		}
+		finally {
+			DatabaseIndexLayers.close(readers);
+		}
+	}
+
+	private static class PendingCommit {
+
+		private Path txPath;
+		private CompletableFuture<Database> future;
+
+		PendingCommit(Path txPath) {
+			this.txPath = txPath;
+			future = new CompletableFuture<>();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package org.merfu.pdb;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Folds the delta indexes written by the delta commits into larger deltas or into the base indexes.
+ *
+ * The indexes are merged from a database snapshot without holding any lock, the merged indexes are then published
+ * in a new commit that carries the deltas committed in the meanwhile.
+ */
+class DatabaseCompactor {
+
+	static private Logger logger = LoggerFactory.getLogger(DatabaseCompactor.class);
+
+	/**
+	 * The number of deltas of the same size tier that are merged together
+	 */
+	private static int DELTA_TIER_THRESHOLD = 4;
+
+	/**
+	 * The size ratio between consecutive size tiers
+	 */
+	private static int DELTA_TIER_FACTOR = 4;
+
+	/**
+	 * The size of the deltas in the first size tier
+	 */
+	private static long DELTA_TIER_MIN_SIZE = 64 * 1024;
+
+	/**
+	 * The number of deltas that triggers folding all the deltas into the base index
+	 */
+	private static int MAX_DELTAS = 16;
+
+	private Pdb pdb;
+	private Set<String> scheduledDatabases;
+
+	DatabaseCompactor(Pdb pdb) {
+		this.pdb = pdb;
+		scheduledDatabases = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Schedules the background compaction of a database.
+	 *
+	 * @param databaseName The database name
+	 */
+	void schedule(String databaseName) {
+		if(!scheduledDatabases.add(databaseName))
+			return;
+
+		DatabaseSupport.executeCompaction(() -> {
+			scheduledDatabases.remove(databaseName);
+			try {
+				compact(databaseName, false);
+			} catch (IOException e) {
+				logger.warn("Failed to compact database {}", databaseName, e);
+			}
+		});
+	}
+
+	/**
+	 * Compacts the delta indexes of a database.
+	 *
+	 * @param databaseName The database name
+	 * @param full Fold all the deltas into the base indexes, otherwise apply the size tiered policy
+	 * @throws IOException if an I/O error occurs when reading or writing the file system
+	 */
+	synchronized void compact(String databaseName, boolean full) throws IOException {
+
+		Path compactionPath;
+		Map<String, Compaction> indexNameToCompactionMap = new HashMap<>();
+
+		try(Database database = pdb.getDatabase(databaseName)) {
+			if(database == null)
+				return;
+
+			Path databasePath = database.getDatabasePath();
+			compactionPath = DatabaseSupport.getDatabaseCompactionDirectoryPath(databasePath);
+			DatabaseSupport.removeDirectory(compactionPath);
+
+			for(KeyIndex<?> keyIndex: pdb.keyIndexes) {
+				DatabaseIndexLayers layers = DatabaseIndexLayers.load(databasePath, keyIndex.getName(), database.getCommit());
+
+				Compaction compaction = plan(layers, full);
+				if(compaction != null) {
+					logger.debug("Starting compacting index '{}' under {}...", keyIndex.getName(), databasePath.toString());
+					compaction.merge(keyIndex, layers, compactionPath, pdb.getFenceInterval());
+					logger.debug("Completed compacting index '{}' under {}", keyIndex.getName(), databasePath.toString());
+
+					indexNameToCompactionMap.put(keyIndex.getName(), compaction);
+				}
+			}
+		}
+
+		if(indexNameToCompactionMap.isEmpty())
+			return;
+
+		try {
+			pdb.commitCompaction(databaseName, compactionPath, indexNameToCompactionMap);
+		}
+		finally {
+			DatabaseSupport.removeDirectory(compactionPath);
+		}
+	}
+
+	private Compaction plan(DatabaseIndexLayers layers, boolean full) throws IOException {
+
+		long[] deltas = layers.getDeltas();
+		if(deltas.length == 0)
+			return null;
+
+		if(full)
+			return new Compaction(true, deltas);
+
+		if(deltas.length < DELTA_TIER_THRESHOLD)
+			return null;
+
+		long deltasSize = 0;
+		Map<Integer, List<Long>> tierToDeltasMap = new TreeMap<>();
+		for(long delta: deltas) {
+			long deltaSize = layers.getDeltaSize(delta);
+			deltasSize += deltaSize;
+
+			tierToDeltasMap.computeIfAbsent(tier(deltaSize), tier -> new ArrayLinkedList<>()).add(delta);
+		}
+
+		if(deltas.length >= MAX_DELTAS || deltasSize >= layers.getBaseSize())
+			return new Compaction(true, deltas);
+
+		for(List<Long> tierDeltas: tierToDeltasMap.values()) {
+			if(tierDeltas.size() >= DELTA_TIER_THRESHOLD)
+				return new Compaction(false, tierDeltas.stream().mapToLong(Long::longValue).toArray());
+		}
+
+		return null;
+	}
+
+	private static int tier(long size) {
+		int tier = 0;
+		for(long tierSize = size / DELTA_TIER_MIN_SIZE; tierSize > 0; tierSize /= DELTA_TIER_FACTOR)
+			tier++;
+
+		return tier;
+	}
+
+	/**
+	 * The merge of the base index, optionally, and of a set of deltas of an index.
+	 */
+	static class Compaction {
+
+		private boolean base;
+		private long[] deltas;
+		private Set<String> tombstones;
+
+		Compaction(boolean base, long[] deltas) {
+			this.base = base;
+			this.deltas = deltas;
+			tombstones = new HashSet<>();
+		}
+
+		boolean isBase() {
+			return base;
+		}
+
+		long[] getDeltas() {
+			return deltas;
+		}
+
+		/**
+		 * @return The tombstones of the merged deltas that apply to data files outside the merge
+		 */
+		Set<String> getTombstones() {
+			return tombstones;
+		}
+
+		<K extends Comparable<K>> void merge(KeyIndex<K> keyIndex, DatabaseIndexLayers layers, Path compactionPath, int fenceInterval) throws IOException {
+
+			String indexName = keyIndex.getName();
+			Set<String> replacedFileNames = layers.loadTombstones();
+
+			List<DatabaseIndexReader> readers = layers.open(base, deltas);
+			try {
+				DatabaseIndexMerger<K> merger = new DatabaseIndexMerger<>(keyIndex);
+				for(DatabaseIndexReader reader: readers)
+					merger.add(reader, fileName -> replacedFileNames.contains(fileName) ? null : fileName);
+
+				merger.merge(DatabaseSupport.getDatabaseIndexPath(compactionPath, indexName, 0),
+						DatabaseSupport.getDatabaseFileIndexPath(compactionPath, indexName, 0),
+						base ? DatabaseSupport.getDatabaseIndexFencesPath(compactionPath, indexName, 0) : null, fenceInterval);
+			}
+			finally {
+				DatabaseIndexLayers.close(readers);
+			}
+
+			if(!base) {
+				for(long delta: deltas)
+					tombstones.addAll(layers.loadTombstones(delta));
+
+				for(long delta: deltas)
+					tombstones.removeAll(layers.loadDeltaFileNames(delta));
+			}
+		}
+	}
+}
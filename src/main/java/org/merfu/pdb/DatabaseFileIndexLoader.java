@@ -0,0 +1,27 @@
+package org.merfu.pdb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+class DatabaseFileIndexLoader {
+
+	public Map<String, String> load(Path databaseFileIndexPath) throws IOException {
+
+		Map<String,String> idToFileNameMap = new HashMap<>();
+		try(BufferedReader reader = Files.newBufferedReader(databaseFileIndexPath)) {
+			String line = reader.readLine();
+			while(line != null) {
+				String[] fields = line.split("\\|");
+				idToFileNameMap.put(fields[0], fields[1]);
+
+				line = reader.readLine();
+			}
+		}
+
+		return idToFileNameMap;
+	}
+}
@@ -6,16 +6,33 @@ import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
+/**
+ * The entries of a database index in key order.
+ *
+ * A partitioned index is split in ranges of entries that start at the index fences, see {@link DatabaseIndexFences}.
+ * The lookups are routed to the partitions by the first key of each partition and each partition is loaded the first
+ * time it is accessed. The partitions are cached separately so that the partitions not in use can be reclaimed while
+ * the index stays loaded. A sparse index is a partitioned index with a partition every
+ * {@link DatabaseIndexLoader#SPARSE_BLOCK_SIZE} entries.
+ *
+ * The lookups of a hash index find the keys in a hash table of each partition instead of searching the partition. The
+ * primitive lookups of a long index search the keys of each partition decoded once.
+ */
 class DatabaseIndex {
 
 	private static int ORDERED_LOOKUP_WINDOW = 1024;
@@ -24,27 +41,81 @@ class DatabaseIndex {
 	private Path databaseDataPath;
 
 	private String[] fileNames;
+	private int size;
+
+	/**
+	 * The index of the first entry of each partition
+	 */
+	private int[] partitionStarts;
+	private String[] partitionKeyStrings;
+	private PartitionLoader partitionLoader;
+	private Map<Integer, DatabaseIndexEntry[]> partitionToEntriesMap;
+	private Map<Integer, DatabaseIndexHashTable> partitionToHashTableMap;
+	private Map<Integer, long[]> partitionToLongKeysMap;
+	private volatile long[] partitionLongKeys;
+
+	/**
+	 * The entries of an index that is not partitioned
+	 */
 	private DatabaseIndexEntry[] entries;
 
 	private Map<String, FileIndex> fileNameToFileIndexMap;
 
 	public DatabaseIndex(Path databasePath, String[] fileNames, DatabaseIndexEntry[] entries) {
+		this(databasePath, fileNames, entries.length, new int[] { 0 }, null, null);
+		this.entries = entries;
+	}
+
+	/**
+	 * Creates a partitioned index.
+	 *
+	 * @param databasePath The database path
+	 * @param fileNames The data files referenced by the index
+	 * @param size The number of entries of the index
+	 * @param partitionStarts The index of the first entry of each partition
+	 * @param partitionKeyStrings The key string of the first entry of each partition
+	 * @param partitionLoader Loads the entries of a partition
+	 */
+	public DatabaseIndex(Path databasePath, String[] fileNames, int size, int[] partitionStarts, String[] partitionKeyStrings,
+			PartitionLoader partitionLoader) {
 		this.databasePath = databasePath;
 		databaseDataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
 
 		this.fileNames = fileNames;
-		this.entries = entries;
-
+		this.size = size;
+		this.partitionStarts = partitionStarts;
+		this.partitionKeyStrings = partitionKeyStrings;
+		this.partitionLoader = partitionLoader;
+
+		partitionToEntriesMap = DatabaseSupport.softValuesMap();
+		partitionToHashTableMap = DatabaseSupport.softValuesMap();
+		partitionToLongKeysMap = DatabaseSupport.softValuesMap();
 		fileNameToFileIndexMap = DatabaseSupport.softValuesMap();
 	}
 
 	<K extends Comparable<K>> Stream<MatchedRecord<K>> lookup(Stream<K> keys, KeyIndex<K> keyIndex) throws IOException {
+		return lookup(keys, keyIndex, null);
+	}
+
+	/**
+	 * @param fieldNames The covered fields returned instead of the records or null to return the records
+	 */
+	<K extends Comparable<K>> Stream<MatchedRecord<K>> lookup(Stream<K> keys, KeyIndex<K> keyIndex, List<String> fieldNames) throws IOException {
 
 		List<K> nonMatchedKeys = new ArrayLinkedList<>();
+
+		if(partitionStarts.length > 1) {
+			List<K> keyList = keys.toList();
+			loadPartitions(keyList.stream().mapToInt(key -> partitionOf(key, keyIndex)).distinct().toArray());
+			keys = keyList.stream();
+		}
 		
+		HashIndex<K> hashIndex = keyIndex instanceof HashIndex<K> index ? index : null;
 		Stream<SimpleImmutableEntry<K, Stream<String>>> keyEntries = keys.mapMulti(new BiConsumer<K, Consumer<SimpleImmutableEntry<K, Stream<String>>>>() {
 
 				private K lastKey;
+				private int partition = -1;
+				private DatabaseIndexEntry[] partitionEntries;
 				private int fromIndex;
 
 				@Override
@@ -55,21 +126,131 @@ class DatabaseIndex {
 					if (filterOut)
 						return;
 
-					int recordIndex = ArrayUtils.binarySearch(entries, fromIndex, entries.length, key,
-							databaseIndexEntry -> keyIndex.fromKeyString(databaseIndexEntry.getKeyString()));
+					int keyPartition = partitionOf(key, keyIndex);
+					if(keyPartition != partition) {
+						partition = keyPartition;
+						partitionEntries = entries(partition);
+						fromIndex = 0;
+					}
+
+					int recordIndex = hashIndex != null ? hashTable(partition).find(hashIndex.toKeyString(key))
+							: binarySearch(partitionEntries, fromIndex, key, keyIndex);
 					if (recordIndex < 0) {
 						nonMatchedKeys.add(key);
 						return;
 					} else {
 						fromIndex = recordIndex;
 						databaseIndexEntrySink
-								.accept(new SimpleImmutableEntry<>(key, entries[fromIndex++].getFileNames()));
+								.accept(new SimpleImmutableEntry<>(key, partitionEntries[fromIndex++].getFileNames()));
 					}
 				}
 			});
 
 		Map<String, List<K>> fileNameToKeyListMap = fileNameToKeyListMap(keyEntries);		
-		Stream<MatchedRecord<K>> matchedRecords = lookupFiles(keyIndex, fileNameToKeyListMap);
+		Stream<MatchedRecord<K>> matchedRecords = lookupFiles(keyIndex, fieldNames, fileNameToKeyListMap);
+
+		Stream<MatchedRecord<K>> nonMatchedRecords = nonMatchedKeys.stream()
+			.map(key -> new MatchedRecord<>(key, null, null));
+
+		return Stream.concat(nonMatchedRecords.parallel(), matchedRecords);
+	}
+
+	/**
+	 * Looks up the keys of a long index searching the keys of the entries decoded as primitive keys, see
+	 * {@link #longKeys(int)}. The keys are boxed only in the returned records.
+	 *
+	 * @param keys The keys in key order
+	 */
+	Stream<MatchedRecord<Long>> lookup(long[] keys, LongIndex keyIndex) throws IOException {
+
+		List<Long> nonMatchedKeys = new ArrayLinkedList<>();
+		List<SimpleImmutableEntry<Long, Stream<String>>> keyEntries = new ArrayLinkedList<>();
+
+		if(partitionStarts.length > 1)
+			loadPartitions(LongStream.of(keys).mapToInt(this::partitionOf).distinct().toArray());
+
+		int partition = -1;
+		DatabaseIndexEntry[] partitionEntries = null;
+		long[] partitionKeys = null;
+		int fromIndex = 0;
+		for(int i = 0; i < keys.length; i++) {
+			long key = keys[i];
+			if(i > 0 && key == keys[i - 1])
+				continue;
+
+			int keyPartition = partitionOf(key);
+			if(keyPartition != partition) {
+				partition = keyPartition;
+				partitionEntries = entries(partition);
+				partitionKeys = longKeys(partition);
+				fromIndex = 0;
+			}
+
+			int recordIndex = Arrays.binarySearch(partitionKeys, fromIndex, partitionKeys.length, key);
+			if(recordIndex < 0) {
+				nonMatchedKeys.add(key);
+				continue;
+			}
+
+			fromIndex = recordIndex + 1;
+			keyEntries.add(new SimpleImmutableEntry<>(key, partitionEntries[recordIndex].getFileNames()));
+		}
+
+		Map<String, List<Long>> fileNameToKeyListMap = fileNameToKeyListMap(keyEntries.stream());
+		Stream<MatchedRecord<Long>> matchedRecords = lookupFiles(keyIndex, null, fileNameToKeyListMap);
+
+		Stream<MatchedRecord<Long>> nonMatchedRecords = nonMatchedKeys.stream()
+			.map(key -> new MatchedRecord<>(key, null, null));
+
+		return Stream.concat(nonMatchedRecords.parallel(), matchedRecords);
+	}
+
+	/**
+	 * Looks up the records of the nearest key of each key, the greatest key not greater than the key for a floor lookup
+	 * or the least key not less than the key for a ceiling lookup. Each key is resolved with one search and the records
+	 * of a nearest key are read once for all the keys resolved to it.
+	 *
+	 * @param keys The keys in key order
+	 * @param floor True for a floor lookup, false for a ceiling lookup
+	 * @return The records of the nearest keys returned with the keys resolved to them, the nearest keys being the matched
+	 *         keys of the records
+	 */
+	<K extends Comparable<K>> Stream<MatchedRecord<K>> lookupNearest(Stream<K> keys, KeyIndex<K> keyIndex, boolean floor) throws IOException {
+
+		List<K> nonMatchedKeys = new ArrayLinkedList<>();
+		Map<K, List<K>> nearestKeyToKeysMap = new HashMap<>();
+		List<SimpleImmutableEntry<K, Stream<String>>> keyEntries = new ArrayLinkedList<>();
+
+		K lastKey = null;
+		for(Iterator<K> iterator = keys.iterator(); iterator.hasNext();) {
+			K key = iterator.next();
+			if(key.equals(lastKey))
+				continue;
+			lastKey = key;
+
+			int index = search(key, keyIndex);
+			if(index < 0)
+				index = floor ? -index - 2 : -index - 1;
+			if(index < 0 || index >= size) {
+				nonMatchedKeys.add(key);
+				continue;
+			}
+
+			DatabaseIndexEntry databaseIndexEntry = entry(index);
+			K nearestKey = keyIndex.fromKeyString(databaseIndexEntry.getKeyString());
+			List<K> nearestKeys = nearestKeyToKeysMap.get(nearestKey);
+			if(nearestKeys == null) {
+				nearestKeys = new ArrayLinkedList<>();
+				nearestKeyToKeysMap.put(nearestKey, nearestKeys);
+				keyEntries.add(new SimpleImmutableEntry<>(nearestKey, databaseIndexEntry.getFileNames()));
+			}
+			nearestKeys.add(key);
+		}
+
+		Map<String, List<K>> fileNameToKeyListMap = fileNameToKeyListMap(keyEntries.stream());
+		Stream<MatchedRecord<K>> matchedRecords = lookupFiles(keyIndex, null, fileNameToKeyListMap).flatMap(matchedRecord ->
+			nearestKeyToKeysMap.get(matchedRecord.getKey()).stream()
+				.map(key -> new MatchedRecord<>(key, matchedRecord.getKey(), matchedRecord.getRecord(), matchedRecord.getDataFilePath(), null)));
 
 		Stream<MatchedRecord<K>> nonMatchedRecords = nonMatchedKeys.stream()
 			.map(key -> new MatchedRecord<>(key, null, null));
@@ -83,8 +264,7 @@ class DatabaseIndex {
 
 	<K extends Comparable<K>> Stream<MatchedRecord<K>> streamOrdered(KeyIndex<K> keyIndex, K greaterThan) throws IOException {
 		
-		int recordIndex = ArrayUtils.binarySearch(entries, 0, entries.length, greaterThan,
-				databaseIndexEntry -> keyIndex.fromKeyString(databaseIndexEntry.getKeyString()));
+		int recordIndex = search(greaterThan, keyIndex);
 		
 		if(recordIndex < 0)
 			recordIndex = -recordIndex - 1;
@@ -107,7 +287,7 @@ class DatabaseIndex {
 				startWindow += ORDERED_LOOKUP_WINDOW;
 				return current;
 			}
-		}).takeWhile(startWindow -> startWindow < entries.length).map(new Function<Integer, Stream<SimpleImmutableEntry<K, Stream<String>>>>() {
+		}).takeWhile(startWindow -> startWindow < size).map(new Function<Integer, Stream<SimpleImmutableEntry<K, Stream<String>>>>() {
 
 			@Override
 			public Stream<SimpleImmutableEntry<K, Stream<String>>> apply(Integer startWindow) {
@@ -118,12 +298,12 @@ class DatabaseIndex {
 					
 					@Override
 					public SimpleImmutableEntry<K, Stream<String>> get() {
-						DatabaseIndexEntry databaseIndexEntry = entries[current++];
+						DatabaseIndexEntry databaseIndexEntry = entry(current++);
 						
 						K key = keyIndex.fromKeyString(databaseIndexEntry.getKeyString());
 						return new SimpleImmutableEntry<>(key, databaseIndexEntry.getFileNames());
 					}
-				}).limit(Math.min(startWindow + ORDERED_LOOKUP_WINDOW, entries.length) - startWindow);
+				}).limit(Math.min(startWindow + ORDERED_LOOKUP_WINDOW, size) - startWindow);
 			}
 		}).map(keyEntries -> {
 			Map<String, List<K>> fileNameToKeyListMap = fileNameToKeyListMap(keyEntries);		
@@ -136,13 +316,12 @@ class DatabaseIndex {
 	}
 
 	<K extends Comparable<K>> Stream<MatchedRecord<K>> streamReversed(KeyIndex<K> keyIndex) throws IOException {
-		return streamReversed(keyIndex, entries.length);
+		return streamReversed(keyIndex, size);
 	}
 
 	<K extends Comparable<K>> Stream<MatchedRecord<K>> streamReversed(KeyIndex<K> keyIndex, K lesserThan) throws IOException {
 		
-		int recordIndex = ArrayUtils.binarySearch(entries, 0, entries.length, lesserThan,
-				databaseIndexEntry -> keyIndex.fromKeyString(databaseIndexEntry.getKeyString()));
+		int recordIndex = search(lesserThan, keyIndex);
 		
 		if(recordIndex < 0)
 			recordIndex = -recordIndex - 1;
@@ -174,7 +353,7 @@ class DatabaseIndex {
 							
 							@Override
 							public SimpleImmutableEntry<K, Stream<String>> get() {
-								DatabaseIndexEntry databaseIndexEntry = entries[--current];
+								DatabaseIndexEntry databaseIndexEntry = entry(--current);
 								
 								K key = keyIndex.fromKeyString(databaseIndexEntry.getKeyString());
 								return new SimpleImmutableEntry<>(key, databaseIndexEntry.getFileNames());
@@ -204,7 +383,7 @@ class DatabaseIndex {
 				Collectors.mapping(entry -> entry.getValue(), ArrayLinkedList.collector())));
 	}
 	
-	private <K extends Comparable<K>> Stream<MatchedRecord<K>> lookupFiles(KeyIndex<K> keyIndex, Map<String, List<K>> fileNameToKeyListMap) {
+	private <K extends Comparable<K>> Stream<MatchedRecord<K>> lookupFiles(KeyIndex<K> keyIndex, List<String> fieldNames, Map<String, List<K>> fileNameToKeyListMap) {
 		
 		return keysForFileIndexStream(keyIndex, fileNameToKeyListMap).<MatchedRecord<K>>mapMulti((entry, matchedRecordsSink) -> {
 
@@ -212,7 +391,7 @@ class DatabaseIndex {
 			List<K> fileKeys = entry.getValue();
 
 			try {
-				fileIndex.lookup(fileKeys, keyIndex, matchedRecordsSink);
+				fileIndex.lookup(fileKeys, keyIndex, fieldNames, matchedRecordsSink);
 			} catch (FileNotFoundException e) {
 				throw new StreamingException(e);
 			}
@@ -260,8 +439,10 @@ class DatabaseIndex {
 				Path relativeDataPath = fileSystem.getPath(name);
 
 				try {
-					return new FileIndexLoader().load(databasePath, relativeDataPath, keyIndex.getName())
+					FileIndex loadedFileIndex = new FileIndexLoader().load(databasePath, relativeDataPath, keyIndex)
 							.internFields();
+
+					return keyIndex instanceof LongIndex ? loadedFileIndex.decodeLongKeys() : loadedFileIndex;
 				} catch (IOException e) {
 					throw new StreamingException("Failed to load file index "
 							+ databaseDataPath.resolve(relativeDataPath).toString(), e);
@@ -272,12 +453,143 @@ class DatabaseIndex {
 		});
 	}
 	
-	public String[] getFileNames() {
-		return fileNames;
+	/**
+	 * Finds the index of the entry of a key in the partition the key is routed to.
+	 *
+	 * @return The entry index or (-(insertion point) - 1) if the key is not in the index
+	 */
+	private <K extends Comparable<K>> int search(K key, KeyIndex<K> keyIndex) {
+
+		int partition = partitionOf(key, keyIndex);
+		DatabaseIndexEntry[] partitionEntries = entries(partition);
+
+		int recordIndex = binarySearch(partitionEntries, 0, key, keyIndex);
+
+		return recordIndex < 0 ? recordIndex - partitionStarts[partition] : recordIndex + partitionStarts[partition];
 	}
 
-	public DatabaseIndexEntry[] getEntries() {
-		return entries;
+	/**
+	 * Searches a key in the entries of a partition comparing the key strings when they sort in key order.
+	 */
+	private static <K extends Comparable<K>> int binarySearch(DatabaseIndexEntry[] partitionEntries, int fromIndex, K key, KeyIndex<K> keyIndex) {
+
+		String sortedKeyString = keyIndex.toSortedKeyString(key);
+		if(sortedKeyString != null)
+			return ArrayUtils.binarySearch(partitionEntries, fromIndex, partitionEntries.length, sortedKeyString, DatabaseIndexEntry::getKeyString);
+
+		return ArrayUtils.binarySearch(partitionEntries, fromIndex, partitionEntries.length, key,
+				databaseIndexEntry -> keyIndex.fromKeyString(databaseIndexEntry.getKeyString()));
+	}
+
+	/**
+	 * @return The last partition whose first key is not greater than the key or the first partition
+	 */
+	private <K extends Comparable<K>> int partitionOf(K key, KeyIndex<K> keyIndex) {
+
+		if(partitionStarts.length == 1)
+			return 0;
+
+		String sortedKeyString = keyIndex.toSortedKeyString(key);
+		int partition = 0;
+		int low = 1;
+		int high = partitionStarts.length - 1;
+		while(low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = sortedKeyString != null ? partitionKeyStrings[mid].compareTo(sortedKeyString)
+					: keyIndex.fromKeyString(partitionKeyStrings[mid]).compareTo(key);
+			if(cmp <= 0) {
+				partition = mid;
+				low = mid + 1;
+			}
+			else
+				high = mid - 1;
+		}
+
+		return partition;
+	}
+
+	/**
+	 * @return The last partition whose first key is not greater than the long key or the first partition
+	 */
+	private int partitionOf(long key) {
+
+		if(partitionStarts.length == 1)
+			return 0;
+
+		long[] firstKeys = partitionLongKeys;
+		if(firstKeys == null) {
+			firstKeys = new long[partitionKeyStrings.length];
+			for(int partition = 1; partition < firstKeys.length; partition++)
+				firstKeys[partition] = LongIndex.parseKeyString(partitionKeyStrings[partition]);
+			partitionLongKeys = firstKeys;
+		}
+
+		int partition = Arrays.binarySearch(firstKeys, 1, firstKeys.length, key);
+
+		return partition < 0 ? -partition - 2 : partition;
+	}
+
+	private DatabaseIndexEntry entry(int index) {
+
+		int partition = Arrays.binarySearch(partitionStarts, index);
+		if(partition < 0)
+			partition = -partition - 2;
+
+		return entries(partition)[index - partitionStarts[partition]];
+	}
+
+	private DatabaseIndexEntry[] entries(int partition) {
+
+		if(entries != null)
+			return entries;
+
+		return partitionToEntriesMap.computeIfAbsent(partition, key -> {
+			int start = partitionStarts[partition];
+			int end = partition + 1 < partitionStarts.length ? partitionStarts[partition + 1] : size;
+			try {
+				DatabaseIndexEntry[] partitionEntries = partitionLoader.load(partition, end - start);
+				DatabaseSupport.executeIntern(() -> Stream.of(partitionEntries).forEach(DatabaseIndexEntry::internFields));
+
+				return partitionEntries;
+			} catch (IOException e) {
+				throw new StreamingException("Failed to load partition " + partition + " of index under "
+						+ databasePath.toString(), e);
+			}
+		});
+	}
+
+	/**
+	 * Returns the hash table of the entries of a partition built the first time the partition is accessed by a hash
+	 * index lookup.
+	 */
+	private DatabaseIndexHashTable hashTable(int partition) {
+		return partitionToHashTableMap.computeIfAbsent(partition, key -> new DatabaseIndexHashTable(entries(partition)));
+	}
+
+	/**
+	 * Returns the keys of the entries of a partition of a long index decoded the first time the partition is accessed by
+	 * a primitive lookup.
+	 */
+	private long[] longKeys(int partition) {
+		return partitionToLongKeysMap.computeIfAbsent(partition, key -> Stream.of(entries(partition))
+				.mapToLong(databaseIndexEntry -> LongIndex.parseKeyString(databaseIndexEntry.getKeyString())).toArray());
+	}
+
+	/**
+	 * Loads the partitions that are not loaded concurrently.
+	 */
+	private void loadPartitions(int[] partitions) throws IOException {
+
+		List<Callable<DatabaseIndexEntry[]>> loadTasks = IntStream.of(partitions)
+				.filter(partition -> !partitionToEntriesMap.containsKey(partition))
+				.<Callable<DatabaseIndexEntry[]>>mapToObj(partition -> () -> entries(partition)).toList();
+
+		if(loadTasks.size() > 1)
+			DatabaseSupport.invokeAll(loadTasks);
+	}
+
+	public String[] getFileNames() {
+		return fileNames;
 	}
 
 	public DatabaseIndex internFields() {
@@ -286,11 +598,23 @@ class DatabaseIndex {
 
 			@Override
 			public void run() {
-				Stream.of(entries).forEach(DatabaseIndexEntry::internFields);
+				if(entries != null)
+					Stream.of(entries).forEach(DatabaseIndexEntry::internFields);
 				Arrays.setAll(fileNames, idx -> fileNames[idx].intern());
 			}
 		});
 
 		return this;
 	}
+
+	interface PartitionLoader {
+
+		/**
+		 * @param partition The partition number
+		 * @param entryCount The number of entries of the partition
+		 * @return The entries of the partition in key order
+		 * @throws IOException if an I/O error occurs when reading the index file
+		 */
+		DatabaseIndexEntry[] load(int partition, int entryCount) throws IOException;
+	}
 }
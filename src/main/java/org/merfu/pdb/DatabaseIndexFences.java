@@ -0,0 +1,139 @@
+package org.merfu.pdb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The fences of a database index file are the file position and the key string of every {@link #FENCE_INTERVAL}th
+ * entry of the index, or of every {@link DatabaseIndexLoader#SPARSE_BLOCK_SIZE}th entry when the indexes are sparse.
+ * They split the index file in ranges of entries that are loaded independently.
+ *
+ * The fences file starts with the number of entries of the index and the fence interval followed by a line for each
+ * fence with its file position and its key string.
+ */
+class DatabaseIndexFences {
+
+	static int FENCE_INTERVAL = 4096;
+
+	private int entryCount;
+	private int interval;
+	private long[] positions;
+	private String[] keyStrings;
+
+	DatabaseIndexFences(int entryCount, int interval, long[] positions, String[] keyStrings) {
+		this.entryCount = entryCount;
+		this.interval = interval;
+		this.positions = positions;
+		this.keyStrings = keyStrings;
+	}
+
+	/**
+	 * Loads the fences of a database index.
+	 *
+	 * @param databasePath The database path
+	 * @param indexName The index name
+	 * @param commit The index commit
+	 * @return The fences or null if the index has no fences file
+	 * @throws IOException if an I/O error occurs when reading the fences file
+	 */
+	public static DatabaseIndexFences load(Path databasePath, String indexName, long commit) throws IOException {
+
+		Path fencesPath = DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, commit);
+		if(!Files.isRegularFile(fencesPath))
+			return null;
+
+		try(BufferedReader reader = Files.newBufferedReader(fencesPath)) {
+			int entryCount = Integer.parseInt(reader.readLine());
+			int interval = Integer.parseInt(reader.readLine());
+
+			List<String> lines = reader.lines().toList();
+			long[] positions = new long[lines.size()];
+			String[] keyStrings = new String[lines.size()];
+			for(int i = 0; i < lines.size(); i++) {
+				String[] fields = lines.get(i).split("\\|", 2);
+				positions[i] = Long.parseLong(fields[0], Character.MAX_RADIX);
+				keyStrings[i] = fields[1];
+			}
+
+			return new DatabaseIndexFences(entryCount, interval, positions, keyStrings);
+		}
+		catch(IOException | RuntimeException e) {
+			throw new IOException("Failed to read fences file " + fencesPath.toString(), e);
+		}
+	}
+
+	/**
+	 * Collects the fences of a database index at a shorter interval than the one of its fences file by reading the
+	 * index file once. Only the fences are kept, the entries are dropped as they are read.
+	 *
+	 * @param databaseIndexPath The database index path
+	 * @param interval The number of entries between the fences
+	 * @return The fences
+	 * @throws IOException if an I/O error occurs when reading the index file
+	 */
+	public static DatabaseIndexFences scan(Path databaseIndexPath, int interval) throws IOException {
+
+		List<Long> positions = new ArrayLinkedList<>();
+		List<String> keyStrings = new ArrayLinkedList<>();
+		int entryCount = 0;
+		long position = 0;
+		try(BufferedReader reader = Files.newBufferedReader(databaseIndexPath)) {
+			FrontCoder frontCoder = new FrontCoder();
+			for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+				String[] fields = line.split("\\|", 2);
+				String keyString = frontCoder.decode(fields[0], fields[1]);
+				if(entryCount++ % interval == 0) {
+					positions.add(position);
+					keyStrings.add(keyString);
+				}
+
+				position += DatabaseIndexFencesWriter.lineLength(line);
+			}
+		}
+		catch(IOException | RuntimeException e) {
+			throw new IOException("Failed to read index file " + databaseIndexPath.toString(), e);
+		}
+
+		return new DatabaseIndexFences(entryCount, interval, positions.stream().mapToLong(Long::longValue).toArray(),
+				keyStrings.toArray(new String[keyStrings.size()]));
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Splits the index in ranges of about the same number of entries that start at a fence.
+	 *
+	 * @param partitions The requested number of ranges
+	 * @return The index of the first fence of each range, fewer ranges than requested when the index has fewer fences
+	 */
+	public int[] partition(int partitions) {
+
+		int ranges = Math.max(1, Math.min(partitions, positions.length));
+		int[] firstFences = new int[ranges];
+		for(int range = 0; range < ranges; range++)
+			firstFences[range] = (int) ((long) range * positions.length / ranges);
+
+		return firstFences;
+	}
+
+	public int getEntryIndex(int fence) {
+		return fence < positions.length ? fence * interval : entryCount;
+	}
+
+	public long getPosition(int fence) {
+		return positions[fence];
+	}
+
+	public String getKeyString(int fence) {
+		return keyStrings[fence];
+	}
+}
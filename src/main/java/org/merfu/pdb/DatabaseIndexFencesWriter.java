@@ -0,0 +1,98 @@
+package org.merfu.pdb;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Collects the fences of a database index while the index file is written, see {@link DatabaseIndexFences}.
+ */
+class DatabaseIndexFencesWriter {
+
+	private static int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+
+	private Path fencesPath;
+	private int interval;
+	private int entryCount;
+	private long position;
+	private List<String> fences;
+
+	/**
+	 * @param fencesPath The fences file path
+	 * @param interval The number of entries between the fences
+	 */
+	DatabaseIndexFencesWriter(Path fencesPath, int interval) {
+		this.fencesPath = fencesPath;
+		this.interval = interval;
+		fences = new ArrayLinkedList<>();
+	}
+
+	/**
+	 * Records an index line written after the lines recorded before.
+	 *
+	 * @param keyString The key string of the entry
+	 * @param line The index line without the line separator
+	 */
+	public void add(String keyString, CharSequence line) {
+
+		if(entryCount++ % interval == 0)
+			fences.add(Long.toString(position, Character.MAX_RADIX) + "|" + keyString);
+
+		position += lineLength(line);
+	}
+
+	/**
+	 * Persists the fences once the index file is complete.
+	 *
+	 * @throws IOException if an I/O error occurs when writing the fences file
+	 */
+	public void persist() throws IOException {
+
+		Path tempFencesPath = DatabaseSupport.temporaryPath(fencesPath);
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFencesPath)) {
+			writer.write(Integer.toString(entryCount));
+			writer.newLine();
+			writer.write(Integer.toString(interval));
+			writer.newLine();
+
+			for(String fence: fences) {
+				writer.write(fence);
+				writer.newLine();
+			}
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to persist fences file " + fencesPath.toString(), e);
+		}
+		Files.move(tempFencesPath, fencesPath, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * @return The number of bytes of an index line followed by the line separator
+	 */
+	static int lineLength(CharSequence line) {
+		return utf8Length(line) + LINE_SEPARATOR_LENGTH;
+	}
+
+	private static int utf8Length(CharSequence chars) {
+
+		int length = 0;
+		for(int i = 0; i < chars.length(); i++) {
+			char c = chars.charAt(i);
+			if(c < 0x80)
+				length++;
+			else if(c < 0x800)
+				length += 2;
+			else if(Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+				length += 4;
+				i++;
+			}
+			else
+				length += 3;
+		}
+
+		return length;
+	}
+}
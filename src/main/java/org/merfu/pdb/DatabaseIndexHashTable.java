@@ -0,0 +1,52 @@
+package org.merfu.pdb;
+
+/**
+ * An open addressing hash table of the entries of a database index or of a partition of a database index for the
+ * point lookups of the hash indexes, see {@link HashIndex}. The table holds the index of each entry in the
+ * slot found by linear probing from the hash of its key string and is kept at most half full.
+ */
+class DatabaseIndexHashTable {
+
+	private DatabaseIndexEntry[] entries;
+
+	/**
+	 * The entry index plus one of each slot, zero for the empty slots
+	 */
+	private int[] slots;
+	private int mask;
+
+	DatabaseIndexHashTable(DatabaseIndexEntry[] entries) {
+		this.entries = entries;
+
+		slots = new int[Integer.highestOneBit(Math.max(1, entries.length * 2 - 1)) << 1];
+		mask = slots.length - 1;
+
+		for(int i = 0; i < entries.length; i++) {
+			int slot = slot(entries[i].getKeyString());
+			while(slots[slot] != 0)
+				slot = (slot + 1) & mask;
+
+			slots[slot] = i + 1;
+		}
+	}
+
+	/**
+	 * @param keyString The key string searched
+	 * @return The index of the entry of the key string or -1 if the key string is not in the table
+	 */
+	int find(String keyString) {
+
+		for(int slot = slot(keyString); slots[slot] != 0; slot = (slot + 1) & mask) {
+			int index = slots[slot] - 1;
+			if(entries[index].getKeyString().equals(keyString))
+				return index;
+		}
+
+		return -1;
+	}
+
+	private int slot(String keyString) {
+		int hash = keyString.hashCode();
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+}
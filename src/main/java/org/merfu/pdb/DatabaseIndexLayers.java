@@ -0,0 +1,236 @@
+package org.merfu.pdb;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The base index and the delta indexes that make up a database index at a commit.
+ *
+ * A delta commit writes the entries of the committed files in a new delta index and records the data files it
+ * replaces as the delta tombstones. The base index and the older deltas are carried to the new commit with hard links.
+ * The delta ids are the commits that created them and are listed in the deltas file of each commit.
+ */
+class DatabaseIndexLayers {
+
+	private Path databasePath;
+	private String indexName;
+	private long commit;
+	private long[] deltas;
+
+	private DatabaseIndexLayers(Path databasePath, String indexName, long commit, long[] deltas) {
+		this.databasePath = databasePath;
+		this.indexName = indexName;
+		this.commit = commit;
+		this.deltas = deltas;
+	}
+
+	public static DatabaseIndexLayers load(Path databasePath, String indexName, long commit) throws IOException {
+
+		Path deltasPath = DatabaseSupport.getDatabaseDeltasPath(databasePath, indexName, commit);
+
+		long[] deltas;
+		if(Files.isRegularFile(deltasPath)) {
+			try {
+				deltas = Files.readAllLines(deltasPath).stream().mapToLong(Long::parseLong).toArray();
+			}
+			catch(IOException e) {
+				throw new IOException("Failed to read deltas file " + deltasPath.toString(), e);
+			}
+		}
+		else
+			deltas = new long[0];
+
+		return new DatabaseIndexLayers(databasePath, indexName, commit, deltas);
+	}
+
+	public long getCommit() {
+		return commit;
+	}
+
+	public long[] getDeltas() {
+		return deltas;
+	}
+
+	public boolean hasDeltas() {
+		return deltas.length != 0;
+	}
+
+	public long getBaseSize() throws IOException {
+		return Files.size(DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, commit));
+	}
+
+	public long getDeltaSize(long delta) throws IOException {
+		return Files.size(DatabaseSupport.getDatabaseDeltaIndexPath(databasePath, indexName, delta, commit));
+	}
+
+	public DatabaseIndexReader openBase() throws IOException {
+		return new DatabaseIndexReader(databasePath, indexName, commit);
+	}
+
+	public DatabaseIndexReader openDelta(long delta) throws IOException {
+		return new DatabaseIndexReader(DatabaseSupport.getDatabaseDeltaIndexPath(databasePath, indexName, delta, commit),
+				DatabaseSupport.getDatabaseDeltaFileIndexPath(databasePath, indexName, delta, commit));
+	}
+
+	/**
+	 * Opens the readers of the base index, when requested, and of the provided deltas in this order.
+	 *
+	 * @param base Open the base index
+	 * @param deltas The deltas to open
+	 * @return The index readers
+	 * @throws IOException if an I/O error occurs when opening the index files
+	 */
+	public List<DatabaseIndexReader> open(boolean base, long[] deltas) throws IOException {
+
+		List<DatabaseIndexReader> readers = new ArrayLinkedList<>();
+		try {
+			if(base)
+				readers.add(openBase());
+
+			for(long delta: deltas)
+				readers.add(openDelta(delta));
+		}
+		catch(IOException e) {
+			close(readers);
+			throw e;
+		}
+
+		return readers;
+	}
+
+	public static void close(List<DatabaseIndexReader> readers) throws IOException {
+		for(DatabaseIndexReader reader: readers)
+			reader.close();
+	}
+
+	public Set<String> loadBaseFileNames() throws IOException {
+		return new HashSet<>(new DatabaseFileIndexLoader().load(DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, commit)).values());
+	}
+
+	public Set<String> loadDeltaFileNames(long delta) throws IOException {
+		return new HashSet<>(new DatabaseFileIndexLoader().load(DatabaseSupport.getDatabaseDeltaFileIndexPath(databasePath, indexName, delta, commit)).values());
+	}
+
+	public Set<String> loadTombstones(long delta) throws IOException {
+		Path tombstonesPath = DatabaseSupport.getDatabaseDeltaTombstonesPath(databasePath, indexName, delta, commit);
+		try {
+			return new HashSet<>(Files.readAllLines(tombstonesPath));
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to read tombstones file " + tombstonesPath.toString(), e);
+		}
+	}
+
+	/**
+	 * @return The data files replaced by all the deltas
+	 * @throws IOException if an I/O error occurs when reading the tombstone files
+	 */
+	public Set<String> loadTombstones() throws IOException {
+		Set<String> tombstones = new HashSet<>();
+		for(long delta: deltas)
+			tombstones.addAll(loadTombstones(delta));
+
+		return tombstones;
+	}
+
+	/**
+	 * @return The data files referenced by the base and the deltas that were not replaced by a delta
+	 * @throws IOException if an I/O error occurs when reading the file indexes
+	 */
+	public Set<String> loadLiveFileNames() throws IOException {
+		Set<String> fileNames = loadBaseFileNames();
+		for(long delta: deltas)
+			fileNames.addAll(loadDeltaFileNames(delta));
+
+		fileNames.removeAll(loadTombstones());
+
+		return fileNames;
+	}
+
+	/**
+	 * Links the base index and the provided deltas of this commit to the next commit.
+	 *
+	 * @param nextCommit The next commit
+	 * @param nextDeltas The deltas of this commit that are carried to the next commit
+	 * @throws IOException if an I/O error occurs when linking the files
+	 */
+	public void link(long nextCommit, long[] nextDeltas) throws IOException {
+		linkBase(nextCommit);
+		linkDeltas(nextCommit, nextDeltas);
+	}
+
+	public void linkDeltas(long nextCommit, long[] nextDeltas) throws IOException {
+		for(long delta: nextDeltas) {
+			DatabaseSupport.createLink(DatabaseSupport.getDatabaseDeltaIndexPath(databasePath, indexName, delta, nextCommit),
+					DatabaseSupport.getDatabaseDeltaIndexPath(databasePath, indexName, delta, commit));
+			DatabaseSupport.createLink(DatabaseSupport.getDatabaseDeltaFileIndexPath(databasePath, indexName, delta, nextCommit),
+					DatabaseSupport.getDatabaseDeltaFileIndexPath(databasePath, indexName, delta, commit));
+			DatabaseSupport.createLink(DatabaseSupport.getDatabaseDeltaTombstonesPath(databasePath, indexName, delta, nextCommit),
+					DatabaseSupport.getDatabaseDeltaTombstonesPath(databasePath, indexName, delta, commit));
+		}
+	}
+
+	public void linkBase(long nextCommit) throws IOException {
+		DatabaseSupport.createLink(DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, nextCommit),
+				DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, commit));
+		DatabaseSupport.createLink(DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, nextCommit),
+				DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, commit));
+
+		// the indexes written before the fences were introduced have no fences
+		Path fencesPath = DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, commit);
+		if(Files.isRegularFile(fencesPath))
+			DatabaseSupport.createLink(DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, nextCommit), fencesPath);
+	}
+
+	/**
+	 * Deletes the index files of this commit.
+	 *
+	 * @throws IOException if an I/O error occurs when deleting the files
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, commit));
+		Files.deleteIfExists(DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, commit));
+		Files.deleteIfExists(DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, commit));
+
+		for(long delta: deltas) {
+			Files.deleteIfExists(DatabaseSupport.getDatabaseDeltaIndexPath(databasePath, indexName, delta, commit));
+			Files.deleteIfExists(DatabaseSupport.getDatabaseDeltaFileIndexPath(databasePath, indexName, delta, commit));
+			Files.deleteIfExists(DatabaseSupport.getDatabaseDeltaTombstonesPath(databasePath, indexName, delta, commit));
+		}
+
+		Files.deleteIfExists(DatabaseSupport.getDatabaseDeltasPath(databasePath, indexName, commit));
+	}
+
+	public static void persistDeltas(Path databasePath, String indexName, long commit, long[] deltas) throws IOException {
+
+		Path deltasPath = DatabaseSupport.getDatabaseDeltasPath(databasePath, indexName, commit);
+		if(deltas.length == 0) {
+			Files.deleteIfExists(deltasPath);
+			return;
+		}
+
+		Path tempDeltasPath = DatabaseSupport.temporaryPath(deltasPath);
+		try (BufferedWriter writer = Files.newBufferedWriter(tempDeltasPath)) {
+			for(long delta: Arrays.stream(deltas).sorted().toArray()) {
+				writer.write(Long.toString(delta));
+				writer.newLine();
+			}
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to persist deltas file " + tempDeltasPath, e);
+		}
+		Files.move(tempDeltasPath, deltasPath, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public static void persistTombstones(Path tombstonesPath, Set<String> tombstones) throws IOException {
+		Files.deleteIfExists(tombstonesPath);
+		new DatabaseRemoveFilesPersister().persist(tombstonesPath, tombstones);
+	}
+}
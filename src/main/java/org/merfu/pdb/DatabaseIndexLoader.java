@@ -1,50 +1,125 @@
 package org.merfu.pdb;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 class DatabaseIndexLoader {
 
-	public DatabaseIndex load(String indexName, Path databasePath, long version) throws IOException {
+	/**
+	 * The number of entries of each partition of a sparse index
+	 */
+	static int SPARSE_BLOCK_SIZE = 256;
 
-		Path fileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, version);
-		Map<String,String> idToFileNameMap = new HashMap<>();
-		try(BufferedReader reader = Files.newBufferedReader(fileIndexPath)) {
-			String line = reader.readLine();
-			while(line != null) {
-				String[] fields = line.split("\\|");
-				idToFileNameMap.put(fields[0], fields[1]);
+	public DatabaseIndex load(KeyIndex<?> keyIndex, Path databasePath, long version) throws IOException {
+		return load(keyIndex, databasePath, version, 1);
+	}
 
-				line = reader.readLine();
-			}
+	/**
+	 * Loads a database index split in partitions when the index has fences and no deltas. The partitions of a sparse
+	 * index are blocks of {@link #SPARSE_BLOCK_SIZE} entries that start at the fences of the fences file, or found by
+	 * reading the index file once when the fences file was written at a longer interval. The partitions of the other
+	 * indexes start at the fences of the fences file.
+	 *
+	 * @param keyIndex The key index
+	 * @param databasePath The database path
+	 * @param version The database commit
+	 * @param partitions The number of partitions, 1 to load the whole index or {@link Integer#MAX_VALUE} for a sparse
+	 *     index
+	 * @return The database index
+	 * @throws IOException if an I/O error occurs when reading the index files
+	 */
+	public DatabaseIndex load(KeyIndex<?> keyIndex, Path databasePath, long version, int partitions) throws IOException {
+
+		DatabaseIndexLayers layers = DatabaseIndexLayers.load(databasePath, keyIndex.getName(), version);
+		if(layers.hasDeltas())
+			return load(keyIndex, databasePath, layers);
+
+		if(partitions > 1) {
+			DatabaseIndexFences fences = DatabaseIndexFences.load(databasePath, keyIndex.getName(), version);
+			if(partitions == Integer.MAX_VALUE && (fences == null || fences.getInterval() > SPARSE_BLOCK_SIZE))
+				fences = DatabaseIndexFences.scan(DatabaseSupport.getDatabaseIndexPath(databasePath, keyIndex.getName(), version), SPARSE_BLOCK_SIZE);
+			if(fences != null && fences.getEntryCount() != 0)
+				return load(keyIndex, databasePath, version, fences, partitions);
 		}
 
-		Path databaseIndexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, version);
+		String[] fileNames;
 		List<DatabaseIndexEntry> entriesList = new ArrayLinkedList<>();
-		try(BufferedReader reader = Files.newBufferedReader(databaseIndexPath)) {
-			String line = reader.readLine();
-			while(line != null) {
-				String[] fields = line.split("\\|", 2);
-
-				String[] files = fields[0].split(",");
-				String keyString = fields[1];
-				
-				Arrays.setAll(files, idx -> idToFileNameMap.get(files[idx]));
-				
-				entriesList.add(files.length > 1 ? new MultiFilesDatabaseIndexEntry(keyString, files) : new SingleFileDatabaseIndexEntry(keyString, files[0]));
-				line = reader.readLine();
+		try(DatabaseIndexReader reader = new DatabaseIndexReader(databasePath, keyIndex.getName(), version)) {
+			DatabaseIndexEntry entry = reader.read();
+			while(entry != null) {
+				entriesList.add(entry);
+				entry = reader.read();
 			}
+
+			fileNames = reader.getFileNames();
 		}
 
 		DatabaseIndexEntry[] entries = entriesList.toArray(new DatabaseIndexEntry[entriesList.size()]);
 		entriesList = null; // allow to gc
 
-		return new DatabaseIndex(databasePath, idToFileNameMap.values().toArray(new String[idToFileNameMap.size()]), entries);
+		return new DatabaseIndex(databasePath, fileNames, entries);
+	}
+
+	/**
+	 * Creates a partitioned index that reads the entries of each partition starting at its first fence.
+	 */
+	private DatabaseIndex load(KeyIndex<?> keyIndex, Path databasePath, long version, DatabaseIndexFences fences, int partitions) throws IOException {
+
+		Path databaseIndexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, keyIndex.getName(), version);
+		Map<String, String> idToFileNameMap = new DatabaseFileIndexLoader().load(
+				DatabaseSupport.getDatabaseFileIndexPath(databasePath, keyIndex.getName(), version));
+
+		int[] firstFences = fences.partition(partitions);
+		int[] partitionStarts = new int[firstFences.length];
+		String[] partitionKeyStrings = new String[firstFences.length];
+		for(int partition = 0; partition < firstFences.length; partition++) {
+			partitionStarts[partition] = fences.getEntryIndex(firstFences[partition]);
+			partitionKeyStrings[partition] = fences.getKeyString(firstFences[partition]);
+		}
+
+		String[] fileNames = idToFileNameMap.values().toArray(new String[idToFileNameMap.size()]);
+		return new DatabaseIndex(databasePath, fileNames, fences.getEntryCount(), partitionStarts, partitionKeyStrings, (partition, entryCount) -> {
+
+			DatabaseIndexEntry[] entries = new DatabaseIndexEntry[entryCount];
+			try(DatabaseIndexReader reader = new DatabaseIndexReader(databaseIndexPath, idToFileNameMap, fences.getPosition(firstFences[partition]))) {
+				for(int i = 0; i < entryCount; i++)
+					entries[i] = reader.read();
+			}
+
+			return entries;
+		});
+	}
+
+	/**
+	 * Merges the base index with the deltas dropping the entries of the data files replaced by the deltas.
+	 */
+	private <K extends Comparable<K>> DatabaseIndex load(KeyIndex<K> keyIndex, Path databasePath, DatabaseIndexLayers layers) throws IOException {
+
+		Set<String> tombstones = layers.loadTombstones();
+		Set<String> fileNames = layers.loadLiveFileNames();
+
+		List<DatabaseIndexEntry> entriesList = new ArrayLinkedList<>();
+		List<DatabaseIndexReader> readers = layers.open(true, layers.getDeltas());
+		try {
+			DatabaseIndexMerger<K> merger = new DatabaseIndexMerger<>(keyIndex);
+			for(DatabaseIndexReader reader: readers)
+				merger.add(reader, fileName -> tombstones.contains(fileName) ? null : fileName);
+
+			merger.merge((keyString, entryFileNames, line) -> {
+				entriesList.add(entryFileNames.size() > 1
+						? new MultiFilesDatabaseIndexEntry(keyString, entryFileNames.toArray(new String[entryFileNames.size()]))
+						: new SingleFileDatabaseIndexEntry(keyString, entryFileNames.get(0)));
+			});
+		}
+		finally {
+			DatabaseIndexLayers.close(readers);
+		}
+
+		DatabaseIndexEntry[] entries = entriesList.toArray(new DatabaseIndexEntry[entriesList.size()]);
+
+		return new DatabaseIndex(databasePath, fileNames.toArray(new String[fileNames.size()]), entries);
 	}
 }
@@ -0,0 +1,262 @@
+package org.merfu.pdb;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Merges sorted database indexes into a new database index file without loading them in memory.
+ *
+ * The sources are read in parallel one entry at a time and the entries with equal keys are combined, the data files
+ * of the sources added first preceding the data files of the sources added later.
+ *
+ * The data files of the first source, the base, keep their ids in the merged index and the file ids of the base
+ * index entries that are not changed by the merge are copied as they are. The data files of the other sources take the ids freed by the
+ * dropped data files first and then new ids above the highest id in use.
+ *
+ * @param <K> The index key type
+ */
+class DatabaseIndexMerger<K extends Comparable<K>> {
+
+	private KeyIndex<K> keyIndex;
+	private List<Source<K>> sources;
+
+	public DatabaseIndexMerger(KeyIndex<K> keyIndex) {
+		this.keyIndex = keyIndex;
+		sources = new ArrayLinkedList<>();
+	}
+
+	/**
+	 * Adds a sorted index to the merge. The first index added is the base of the merge.
+	 *
+	 * @param reader The index reader
+	 * @param fileNameMapper Maps the data file names of the index to the merged data file names or to null to drop them
+	 * @return This merger
+	 */
+	public DatabaseIndexMerger<K> add(DatabaseIndexReader reader, UnaryOperator<String> fileNameMapper) {
+		sources.add(new Source<>(reader, fileNameMapper, sources.size(), sources.isEmpty()));
+		return this;
+	}
+
+	/**
+	 * Merges the sources into a new database index and database file index.
+	 *
+	 * @param databaseIndexPath The merged database index path
+	 * @param databaseFileIndexPath The merged database file index path
+	 * @throws IOException if an I/O error occurs when reading the sources or writing the merged index
+	 */
+	public void merge(Path databaseIndexPath, Path databaseFileIndexPath) throws IOException {
+		merge(databaseIndexPath, databaseFileIndexPath, null, 0);
+	}
+
+	/**
+	 * Merges the sources into a new database index, database file index and index fences.
+	 *
+	 * @param databaseIndexPath The merged database index path
+	 * @param databaseFileIndexPath The merged database file index path
+	 * @param databaseIndexFencesPath The merged index fences path or null to not write the fences
+	 * @param fenceInterval The number of entries between the fences
+	 * @throws IOException if an I/O error occurs when reading the sources or writing the merged index
+	 */
+	public void merge(Path databaseIndexPath, Path databaseFileIndexPath, Path databaseIndexFencesPath, int fenceInterval) throws IOException {
+
+		Map<String, String> fileNameToIdMap = fileNameToIdMap();
+		DatabaseIndexFencesWriter fencesWriter = databaseIndexFencesPath == null ? null : new DatabaseIndexFencesWriter(databaseIndexFencesPath, fenceInterval);
+
+		Files.createDirectories(databaseIndexPath.getParent());
+
+		Path tempDatabaseIndexPath = DatabaseSupport.temporaryPath(databaseIndexPath);
+		try (BufferedWriter writer = Files.newBufferedWriter(tempDatabaseIndexPath)) {
+
+			FrontCoder frontCoder = new FrontCoder();
+			StringBuilder line = new StringBuilder();
+			merge((keyString, fileNames, baseFileIds) -> {
+
+				try {
+					line.setLength(0);
+					if(baseFileIds != null)
+						line.append(baseFileIds);
+					else {
+						for(String fileName: fileNames) {
+							if(line.length() != 0)
+								line.append(',');
+							line.append(fileNameToIdMap.get(fileName));
+						}
+					}
+
+					// the key strings are front coded again as the previous key string changes with the merge
+					int prefixLength = frontCoder.encode(keyString);
+					if(prefixLength != 0)
+						line.append(';').append(Integer.toString(prefixLength, Character.MAX_RADIX));
+					line.append('|').append(keyString, prefixLength, keyString.length());
+
+					writer.append(line);
+					if(fencesWriter != null)
+						fencesWriter.add(keyString, line);
+					writer.newLine();
+				}
+				catch(IOException ex) {
+					throw new IOException("Failed to persist index file " + tempDatabaseIndexPath, ex);
+				}
+			});
+		}
+
+		Path tempDatabaseFileIndexPath = DatabaseSupport.temporaryPath(databaseFileIndexPath);
+		Files.deleteIfExists(tempDatabaseFileIndexPath);
+		Files.deleteIfExists(databaseFileIndexPath);
+		new DatabaseFileIndexPersister().persist(databaseFileIndexPath, fileNameToIdMap);
+
+		if(fencesWriter != null)
+			fencesWriter.persist();
+
+		Files.move(tempDatabaseIndexPath, databaseIndexPath, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Assigns the ids of the merged data files keeping the ids of the base data files.
+	 */
+	private Map<String, String> fileNameToIdMap() {
+
+		Map<String, String> fileNameToIdMap = new HashMap<>();
+		Set<Integer> usedIds = new HashSet<>();
+
+		for(Source<K> source: sources) {
+			if(!source.base)
+				continue;
+
+			source.reader.getIdToFileNameMap().forEach((fileId, fileName) -> {
+				String mappedFileName = source.fileNameMapper.apply(fileName);
+				if(mappedFileName != null) {
+					fileNameToIdMap.put(mappedFileName, fileId);
+					usedIds.add(Integer.parseInt(fileId, Character.MAX_RADIX));
+				}
+			});
+		}
+
+		int nextId = 0;
+		for(Source<K> source: sources) {
+			if(source.base)
+				continue;
+
+			Map<String, String> idToFileNameMap = source.reader.getIdToFileNameMap();
+			List<String> fileIds = new ArrayList<>(idToFileNameMap.keySet());
+			fileIds.sort(Comparator.comparingInt(fileId -> Integer.parseInt(fileId, Character.MAX_RADIX)));
+
+			for(String fileId: fileIds) {
+				String mappedFileName = source.fileNameMapper.apply(idToFileNameMap.get(fileId));
+				if(mappedFileName == null || fileNameToIdMap.containsKey(mappedFileName))
+					continue;
+
+				while(usedIds.contains(++nextId));
+				usedIds.add(nextId);
+
+				fileNameToIdMap.put(mappedFileName, Integer.toString(nextId, Character.MAX_RADIX));
+			}
+		}
+
+		return fileNameToIdMap;
+	}
+
+	/**
+	 * Merges the sources in index order into the provided sink. The entries whose data files were all dropped are skipped.
+	 *
+	 * @param sink Receives the key string and the data file names of each merged entry
+	 * @throws IOException if an I/O error occurs when reading the sources or in the sink
+	 */
+	public void merge(EntrySink sink) throws IOException {
+
+		PriorityQueue<Source<K>> queue = new PriorityQueue<>();
+		for(Source<K> source: sources) {
+			if(source.next(keyIndex))
+				queue.add(source);
+		}
+
+		List<String> fileNames = new ArrayList<>();
+		while(!queue.isEmpty()) {
+			Source<K> source = queue.poll();
+			K key = source.key;
+			String keyString = source.entry.getKeyString();
+
+			fileNames.clear();
+			String fileIds = null;
+			boolean unchanged = source.base;
+			for(;;) {
+				if(unchanged)
+					fileIds = source.reader.getFileIds();
+
+				for(String fileName: source.entry.getFileNames().toList()) {
+					String mappedFileName = source.fileNameMapper.apply(fileName);
+					if(mappedFileName != null)
+						fileNames.add(mappedFileName);
+
+					unchanged &= fileName.equals(mappedFileName);
+				}
+
+				if(source.next(keyIndex))
+					queue.add(source);
+
+				if(queue.isEmpty() || queue.peek().key.compareTo(key) != 0)
+					break;
+
+				source = queue.poll();
+				unchanged = false;
+			}
+
+			if(!fileNames.isEmpty())
+				sink.accept(keyString, fileNames, unchanged ? fileIds : null);
+		}
+	}
+
+	interface EntrySink {
+
+		/**
+		 * @param keyString The entry key string
+		 * @param fileNames The entry data file names
+		 * @param fileIds The file ids of the base index entry when the entry is not changed by the merge or null otherwise
+		 * @throws IOException if an I/O error occurs when writing the entry
+		 */
+		void accept(String keyString, List<String> fileNames, String fileIds) throws IOException;
+	}
+
+	private static class Source<K extends Comparable<K>> implements Comparable<Source<K>> {
+
+		private DatabaseIndexReader reader;
+		private UnaryOperator<String> fileNameMapper;
+		private int order;
+		private boolean base;
+
+		private DatabaseIndexEntry entry;
+		private K key;
+
+		Source(DatabaseIndexReader reader, UnaryOperator<String> fileNameMapper, int order, boolean base) {
+			this.reader = reader;
+			this.fileNameMapper = fileNameMapper;
+			this.order = order;
+			this.base = base;
+		}
+
+		boolean next(KeyIndex<K> keyIndex) throws IOException {
+			entry = reader.read();
+			key = entry == null ? null : keyIndex.fromKeyString(entry.getKeyString());
+
+			return entry != null;
+		}
+
+		@Override
+		public int compareTo(Source<K> other) {
+			int cmp = key.compareTo(other.key);
+			return cmp != 0 ? cmp : Integer.compare(order, other.order);
+		}
+	}
+}
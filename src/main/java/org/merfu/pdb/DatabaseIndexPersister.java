@@ -12,7 +12,7 @@ import java.util.stream.Collectors;
 
 class DatabaseIndexPersister {
 
-	public void persist(Path databaseIndexPath, KeyIndex<?> keyIndex,  Map<String, List<String>> keystringToPathIdListMap) throws IOException {
+	public void persist(Path databaseIndexPath, Path databaseIndexFencesPath, int fenceInterval, KeyIndex<?> keyIndex,  Map<String, List<String>> keystringToPathIdListMap) throws IOException {
 
 		if(Files.exists(databaseIndexPath))
 			return;
@@ -20,17 +20,22 @@ class DatabaseIndexPersister {
 		Files.createDirectories(databaseIndexPath.getParent());
 		
 		Path tempDatabaseIndexPath = DatabaseSupport.temporaryPath(databaseIndexPath);
+		DatabaseIndexFencesWriter fencesWriter = new DatabaseIndexFencesWriter(databaseIndexFencesPath, fenceInterval);
+		FrontCoder frontCoder = new FrontCoder();
 		try (BufferedWriter writer = Files.newBufferedWriter(tempDatabaseIndexPath)) {
 
 			keystringToPathIdListMap.entrySet().stream().sorted(Comparator.comparing(Map.Entry::getKey, keyIndex.getKeyStringComparator())).forEach(entry -> {
 				String keyString = entry.getKey();
 				List<String> fileIdList = entry.getValue();
 
-				String formattedLine = fileIdList.stream().collect(Collectors.joining(",")) + "|" + keyString;
+				int prefixLength = frontCoder.encode(keyString);
+				String formattedLine = FrontCoder.formatField(fileIdList.stream().collect(Collectors.joining(",")), prefixLength)
+						+ "|" + keyString.substring(prefixLength);
 
 				try {
 					writer.write(formattedLine);
 					writer.newLine();
+					fencesWriter.add(keyString, formattedLine);
 				}
 				catch(IOException ex) {
 					throw new UncheckedIOException(new IOException("Failed to persist index file " + tempDatabaseIndexPath, ex));
@@ -40,6 +45,7 @@ class DatabaseIndexPersister {
 		catch(UncheckedIOException ex) {
 			throw ex.getCause();
 		}
+		fencesWriter.persist();
 		Files.move(tempDatabaseIndexPath, databaseIndexPath);
 	}
 }
@@ -0,0 +1,118 @@
+package org.merfu.pdb;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Reads the entries of a database index file one line at a time in index order.
+ */
+class DatabaseIndexReader implements Closeable {
+
+	private Path databaseIndexPath;
+	private Map<String, String> idToFileNameMap;
+	private BufferedReader reader;
+	private String fileIds;
+	private FrontCoder frontCoder;
+
+	public DatabaseIndexReader(Path databasePath, String indexName, long version) throws IOException {
+		this(DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, version),
+				DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, version));
+	}
+
+	public DatabaseIndexReader(Path databaseIndexPath, Path databaseFileIndexPath) throws IOException {
+		this(databaseIndexPath, new DatabaseFileIndexLoader().load(databaseFileIndexPath), 0);
+	}
+
+	/**
+	 * Opens a database index file at the position of an entry, see {@link DatabaseIndexFences}.
+	 *
+	 * @param databaseIndexPath The database index path
+	 * @param idToFileNameMap The data file ids of the index mapped to the data file names
+	 * @param position The file position of the first entry to read
+	 * @throws IOException if an I/O error occurs when opening the index file
+	 */
+	public DatabaseIndexReader(Path databaseIndexPath, Map<String, String> idToFileNameMap, long position) throws IOException {
+
+		this.idToFileNameMap = idToFileNameMap;
+		this.databaseIndexPath = databaseIndexPath;
+		frontCoder = new FrontCoder();
+
+		if(position == 0)
+			reader = Files.newBufferedReader(databaseIndexPath);
+		else {
+			FileChannel channel = FileChannel.open(databaseIndexPath);
+			try {
+				channel.position(position);
+			}
+			catch(IOException e) {
+				channel.close();
+				throw e;
+			}
+			reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Reads the next index entry.
+	 *
+	 * @return The next entry or null at the end of the index
+	 * @throws IOException if an I/O error occurs when reading the index file
+	 */
+	public DatabaseIndexEntry read() throws IOException {
+
+		String line;
+		try {
+			line = reader.readLine();
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to read index file " + databaseIndexPath.toString(), e);
+		}
+
+		if(line == null)
+			return null;
+
+		String[] fields = line.split("\\|", 2);
+
+		fileIds = FrontCoder.stripField(fields[0]);
+		String[] files = fileIds.split(",");
+		String keyString = frontCoder.decode(fields[0], fields[1]);
+
+		Arrays.setAll(files, idx -> idToFileNameMap.get(files[idx]));
+
+		return files.length > 1 ? new MultiFilesDatabaseIndexEntry(keyString, files) : new SingleFileDatabaseIndexEntry(keyString, files[0]);
+	}
+
+	/**
+	 * @return The file ids of the last entry read as written in the index file
+	 */
+	public String getFileIds() {
+		return fileIds;
+	}
+
+	/**
+	 * @return The data file ids mapped to the data file names
+	 */
+	public Map<String, String> getIdToFileNameMap() {
+		return idToFileNameMap;
+	}
+
+	/**
+	 * @return The names of all the data files referenced by the index
+	 */
+	public String[] getFileNames() {
+		return idToFileNameMap.values().toArray(new String[idToFileNameMap.size()]);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
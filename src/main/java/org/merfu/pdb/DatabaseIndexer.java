@@ -45,7 +45,12 @@ class DatabaseIndexer {
 				return !(Files.isRegularFile(indexPath) && Files.isRegularFile(fileIndexPath));
 			}).toList().toArray(new KeyIndex<?>[0]);
 			
-			Stream<ListResults> filePathStream = listDataDirectory(databaseDataPath.relativize(databaseDataPath), missingKeyIndexes);
+			// the data files of a transaction or of a database commit are found in its manifest without listing the data directory
+			List<Path> dataFiles = DatabaseManifest.loadDataFiles(databasePath);
+			Stream<ListResults> filePathStream = dataFiles == null
+					? listDataDirectory(databaseDataPath.relativize(databaseDataPath), missingKeyIndexes)
+					: dataFiles.stream().map(relativeFilePath -> new ListResults(relativeFilePath, filterKeyIndexes(missingKeyIndexes, relativeFilePath)))
+						.filter(listResult -> listResult.getKeyIndexes().length != 0);
 
 			logger.debug("Starting indexing files under directory {}...", databasePath.toString());
 			Stream<FileIndex> fileIndexStream = filePathStream.flatMap(listResult -> {
@@ -59,65 +64,103 @@ class DatabaseIndexer {
 				}
 			});
 
-			Map<String, List<FileIndex>> indexNameToFileIndexMap = fileIndexStream.collect(Collectors.groupingBy(fileIndex -> fileIndex.getIndexName(), ArrayLinkedList.collector()));
-			logger.debug("Completed indexing files under directory {}", databasePath.toString());
-			
-			Arrays.stream(missingKeyIndexes).forEach(
-				keyIndex -> {
-					String indexName = keyIndex.getName();
-					List<FileIndex> namefileIndexList = indexNameToFileIndexMap.get(indexName);
-					Stream<FileIndex> namefileIndexStream =
-							namefileIndexList == null ? new SinglyLinkedList<FileIndex>().stream() : namefileIndexList.stream();
-
-					Map<String, String> fileNameToIdMap = new HashMap<>();
-
-					logger.debug("Starting merging file indexes for index '{}' under '{}'...", indexName, databasePath.toString());
-					Map<String, List<String>> keystringToPathIdListMap = namefileIndexStream.flatMap(new Function<FileIndex, Stream<SimpleImmutableEntry<String, String>>>() {
-						
-						private int nextFileId;
-						
-						public Stream<SimpleImmutableEntry<String, String>> apply(FileIndex fileIndex) {
-							FileIndexEntry[] entries = fileIndex.getEntries();
-							String fileDataPath = fileIndex.getDataFilePath().toString();
-							String dataFileId = fileNameToIdMap.computeIfAbsent(fileDataPath, fileName ->  Integer.toString(++nextFileId, Character.MAX_RADIX));
-	
-							return Arrays.stream(entries).map(entry -> entry.geyKeyString()).filter(new Predicate<String>() {
-								private String previousValue;
-	
-								@Override
-								public boolean test(String current) {
-									boolean isEqual = !current.equals(previousValue);
-									previousValue = current;
-	
-									return isEqual;
-								}
-							}).map(keyString -> new SimpleImmutableEntry<>(keyString, dataFileId));
-						}
-					}).collect(Collectors.groupingBy(entry -> entry.getKey(),
-							Collectors.mapping(entry -> entry.getValue(), SinglyLinkedList.collector())));
-					logger.debug("Completed merging file indexes for index '{}' under '{}'", indexName, databasePath.toString());
-					
-					try {
-						Path indexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, commit);
-						Path fileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, commit);
-						
-						logger.debug("Starting saving database index '{}' under '{}'...", indexName, databasePath.toString());
-						new DatabaseIndexPersister().persist(indexPath, keyIndex, keystringToPathIdListMap);
-						new DatabaseFileIndexPersister().persist(fileIndexPath, fileNameToIdMap);
-						logger.debug("Completed saving database index '{}' under '{}'", indexName, databasePath.toString());
-					}
-					catch(IOException e) {
-						String message = "Failed to index " + indexName + " in database " + databasePath.toString();
-						throw new UncheckedIOException(new IOException(message, e));
-					}
-				}
-			);
+			index(missingKeyIndexes, fileIndexStream);
 		}
 		catch(UncheckedIOException ex) {
 			throw ex.getCause();
 		}
 	}
 
+	/**
+	 * Creates the database indexes from file indexes created by the caller instead of indexing the data directory.
+	 * 
+	 * @param fileIndexStream The file indexes of the data files
+	 * @throws IOException if an I/O error occurs when writing the database indexes
+	 */
+	public void index(Stream<FileIndex> fileIndexStream) throws IOException {
+		try {
+			index(pdb.keyIndexes, fileIndexStream);
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private void index(KeyIndex<?>[] missingKeyIndexes, Stream<FileIndex> fileIndexStream) {
+		Map<String, List<FileIndex>> indexNameToFileIndexMap = fileIndexStream.collect(Collectors.groupingBy(fileIndex -> fileIndex.getIndexName(), ArrayLinkedList.collector()));
+		logger.debug("Completed indexing files under directory {}", databasePath.toString());
+		
+		Arrays.stream(missingKeyIndexes).forEach(
+			keyIndex -> {
+				String indexName = keyIndex.getName();
+				List<FileIndex> namefileIndexList = indexNameToFileIndexMap.get(indexName);
+				Stream<FileIndex> namefileIndexStream =
+						namefileIndexList == null ? new SinglyLinkedList<FileIndex>().stream() : namefileIndexList.stream();
+
+				Map<String, String> fileNameToIdMap = new HashMap<>();
+
+				logger.debug("Starting merging file indexes for index '{}' under '{}'...", indexName, databasePath.toString());
+				Map<String, List<String>> keystringToPathIdListMap = namefileIndexStream.flatMap(new Function<FileIndex, Stream<SimpleImmutableEntry<String, String>>>() {
+					
+					private int nextFileId;
+					
+					public Stream<SimpleImmutableEntry<String, String>> apply(FileIndex fileIndex) {
+						FileIndexEntry[] entries = fileIndex.getEntries();
+						String fileDataPath = fileIndex.getDataFilePath().toString();
+						String dataFileId = fileNameToIdMap.computeIfAbsent(fileDataPath, fileName ->  Integer.toString(++nextFileId, Character.MAX_RADIX));
+
+						return Arrays.stream(entries).map(entry -> entry.geyKeyString()).filter(new Predicate<String>() {
+							private String previousValue;
+
+							@Override
+							public boolean test(String current) {
+								boolean isEqual = !current.equals(previousValue);
+								previousValue = current;
+
+								return isEqual;
+							}
+						}).map(keyString -> new SimpleImmutableEntry<>(keyString, dataFileId));
+					}
+				}).collect(Collectors.groupingBy(entry -> entry.getKey(),
+						Collectors.mapping(entry -> entry.getValue(), SinglyLinkedList.collector())));
+				logger.debug("Completed merging file indexes for index '{}' under '{}'", indexName, databasePath.toString());
+				
+				try {
+					Path indexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, commit);
+					Path fileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, commit);
+					
+					logger.debug("Starting saving database index '{}' under '{}'...", indexName, databasePath.toString());
+					new DatabaseIndexPersister().persist(indexPath, DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, commit),
+							pdb.getFenceInterval(), keyIndex, keystringToPathIdListMap);
+					new DatabaseFileIndexPersister().persist(fileIndexPath, fileNameToIdMap);
+					logger.debug("Completed saving database index '{}' under '{}'", indexName, databasePath.toString());
+				}
+				catch(IOException e) {
+					String message = "Failed to index " + indexName + " in database " + databasePath.toString();
+					throw new UncheckedIOException(new IOException(message, e));
+				}
+			}
+		);
+	}
+
+	/**
+	 * Filters the key indexes that index a data file the same way the data directory is filtered when indexed.
+	 * 
+	 * @param keyIndexes The key indexes
+	 * @param relativeFilePath The data file path relative to the database data directory
+	 * @return The key indexes of the data file
+	 */
+	static KeyIndex<?>[] filterKeyIndexes(KeyIndex<?>[] keyIndexes, Path relativeFilePath) {
+
+		KeyIndex<?>[] filteredKeyIndexes = keyIndexes;
+		for(int i = 1; i < relativeFilePath.getNameCount() && filteredKeyIndexes.length != 0; i++) {
+			Path relativeDirPath = relativeFilePath.subpath(0, i);
+			filteredKeyIndexes = Arrays.stream(filteredKeyIndexes).filter(keyIndex -> keyIndex.canIndex(relativeDirPath, true)).toArray(KeyIndex<?>[]::new);
+		}
+
+		return Arrays.stream(filteredKeyIndexes).filter(keyIndex -> keyIndex.canIndex(relativeFilePath, false)).toArray(KeyIndex<?>[]::new);
+	}
+
 	private Stream<ListResults> listDataDirectory(Path dirPath, KeyIndex<?>[] keyIndexes) throws IOException {
 		return Stream.concat(listDataSubdirs(dirPath, keyIndexes), listDataFiles(dirPath, keyIndexes));
 	}
@@ -0,0 +1,181 @@
+package org.merfu.pdb;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * The manifest of a database records the current commit of the database and the data files of the commit, and the
+ * manifest of a transaction records the data files added to the transaction, so that they are found without listing
+ * the database directories. The manifest of a staging commit records the data files of its transaction followed by
+ * the commit it is staged on.
+ *
+ * The database manifest is replaced atomically after each commit and it is trusted only while the commit file of
+ * its commit exists and the commit file of the next commit does not, otherwise the index directory is listed. The
+ * index files of a commit are not recorded, they are named after the commit and its deltas file.
+ */
+class DatabaseManifest {
+
+	private static String COMMIT = "commit|";
+	private static String DATA = "data|";
+	private static String INVENTORY = "inventory|";
+
+	/**
+	 * Loads the current commit of a database.
+	 *
+	 * @param databasePath The database path
+	 * @return The current commit or empty if the manifest is missing or stale
+	 * @throws IOException if an I/O error occurs when reading the manifest
+	 */
+	public static OptionalLong loadCommit(Path databasePath) throws IOException {
+
+		Path manifestPath = DatabaseSupport.getDatabaseManifestPath(databasePath);
+		if(!Files.isRegularFile(manifestPath))
+			return OptionalLong.empty();
+
+		OptionalLong commit;
+		try(Stream<String> lines = Files.lines(manifestPath)) {
+			commit = lines.filter(line -> line.startsWith(COMMIT)).mapToLong(line -> Long.parseLong(line.substring(COMMIT.length()))).findFirst();
+		}
+		catch(IOException | RuntimeException e) {
+			throw new IOException("Failed to read manifest " + manifestPath.toString(), e);
+		}
+
+		if(commit.isEmpty()
+				|| !Files.exists(DatabaseSupport.getDatabaseCommitPath(databasePath, commit.getAsLong()))
+				|| Files.exists(DatabaseSupport.getDatabaseCommitPath(databasePath, commit.getAsLong() + 1)))
+			return OptionalLong.empty();
+
+		return commit;
+	}
+
+	/**
+	 * Loads the data files of the current commit of a database.
+	 *
+	 * @param databasePath The database path
+	 * @param commit The current commit
+	 * @return The data file names or null if the manifest is missing, does not record the commit or its data files
+	 * @throws IOException if an I/O error occurs when reading the manifest
+	 */
+	public static Set<String> loadInventory(Path databasePath, long commit) throws IOException {
+
+		Path manifestPath = DatabaseSupport.getDatabaseManifestPath(databasePath);
+		if(!Files.isRegularFile(manifestPath))
+			return null;
+
+		try(BufferedReader reader = Files.newBufferedReader(manifestPath)) {
+			String commitLine = reader.readLine();
+			String inventoryLine = reader.readLine();
+			if(!(COMMIT + commit).equals(commitLine) || inventoryLine == null || !inventoryLine.startsWith(INVENTORY))
+				return null;
+
+			Set<String> fileNames = new LinkedHashSet<>();
+			for(String line = reader.readLine(); line != null; line = reader.readLine())
+				fileNames.add(line.substring(DATA.length()));
+
+			return fileNames.size() == Integer.parseInt(inventoryLine.substring(INVENTORY.length())) ? fileNames : null;
+		}
+		catch(IOException | RuntimeException e) {
+			throw new IOException("Failed to read manifest " + manifestPath.toString(), e);
+		}
+	}
+
+	/**
+	 * Records the current commit of a database once its commit file is created.
+	 *
+	 * @param databasePath The database path
+	 * @param commit The current commit
+	 * @param fileNames The data files of the commit or null if they are not known
+	 * @throws IOException if an I/O error occurs when writing the manifest
+	 */
+	public static void persistCommit(Path databasePath, long commit, Collection<String> fileNames) throws IOException {
+
+		StringBuilder manifest = new StringBuilder(COMMIT).append(commit).append('\n');
+		if(fileNames != null) {
+			manifest.append(INVENTORY).append(fileNames.size()).append('\n');
+			for(String fileName: fileNames)
+				manifest.append(DATA).append(fileName).append('\n');
+		}
+
+		Path manifestPath = DatabaseSupport.getDatabaseManifestPath(databasePath);
+		Path tempManifestPath = DatabaseSupport.temporaryPath(manifestPath);
+		try {
+			Files.createDirectories(manifestPath.getParent());
+			Files.writeString(tempManifestPath, manifest);
+			Files.move(tempManifestPath, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to persist manifest " + manifestPath.toString(), e);
+		}
+	}
+
+	/**
+	 * Records the commit a staging commit is staged on after the data files of its transaction.
+	 *
+	 * @param commitDatabasePath The staging commit path
+	 * @param commit The commit the staging commit is merged into
+	 * @throws IOException if an I/O error occurs when writing the manifest
+	 */
+	public static void appendCommit(Path commitDatabasePath, long commit) throws IOException {
+
+		Path manifestPath = DatabaseSupport.getDatabaseManifestPath(commitDatabasePath);
+		Files.createDirectories(manifestPath.getParent());
+		Files.writeString(manifestPath, COMMIT + commit + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Loads the data files added to a transaction, or the data files of the current commit of a database. The files
+	 * deleted after they were added are not returned.
+	 *
+	 * @param txPath The transaction or database path
+	 * @return The data file paths relative to the data directory or null if there is no manifest or the manifest of the
+	 *         database does not record its data files
+	 * @throws IOException if an I/O error occurs when reading the manifest
+	 */
+	public static List<Path> loadDataFiles(Path txPath) throws IOException {
+
+		Path manifestPath = DatabaseSupport.getDatabaseManifestPath(txPath);
+		if(!Files.isRegularFile(manifestPath))
+			return null;
+
+		Set<String> fileNames = new LinkedHashSet<>();
+		try {
+			List<String> lines = Files.readAllLines(manifestPath);
+			if(!lines.isEmpty() && lines.get(0).startsWith(COMMIT) && (lines.size() < 2 || !lines.get(1).startsWith(INVENTORY)))
+				return null;
+
+			lines.stream().filter(line -> line.startsWith(DATA)).forEach(line -> fileNames.add(line.substring(DATA.length())));
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to read manifest " + manifestPath.toString(), e);
+		}
+
+		FileSystem fileSystem = txPath.getFileSystem();
+		Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(txPath);
+		return fileNames.stream().map(fileSystem::getPath).filter(relativeFilePath -> Files.isRegularFile(dataPath.resolve(relativeFilePath))).toList();
+	}
+
+	/**
+	 * Records a data file added to a transaction.
+	 *
+	 * @param txPath The transaction path
+	 * @param relativeFilePath The data file path relative to the transaction data directory
+	 * @throws IOException if an I/O error occurs when writing the manifest
+	 */
+	public static void appendDataFile(Path txPath, Path relativeFilePath) throws IOException {
+
+		Path manifestPath = DatabaseSupport.getDatabaseManifestPath(txPath);
+		Files.createDirectories(manifestPath.getParent());
+		Files.writeString(manifestPath, DATA + relativeFilePath.toString() + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+}
@@ -0,0 +1,233 @@
+package org.merfu.pdb;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes the files of the database commits released by their last reader in background.
+ *
+ * The commits are reclaimed one at a time in the order they are released. The files replaced by a commit are deleted
+ * first, then its remove files and last its commit file, so that a reclamation interrupted by a crash is completed by
+ * the recovery. The next commit is released only after the reclamation of the previous commit.
+ *
+ * The reclamations of all the containers run on a shared thread. The last reclamation scheduled for each database is
+ * kept so that a container waits only for the reclamations of its own databases.
+ */
+class DatabaseReclaimer {
+
+	static private Logger logger = LoggerFactory.getLogger(DatabaseReclaimer.class);
+
+	/**
+	 * The commits released on the reclamation thread by the reclamation in progress
+	 */
+	private static ThreadLocal<Queue<Database>> releasedDatabasesQueue = new ThreadLocal<>();
+
+	/**
+	 * The last reclamation scheduled for each database path, removed once it completes
+	 */
+	private static Map<Path, FutureTask<Void>> databasePathToReclamationMap = new ConcurrentHashMap<>();
+
+	private Pdb pdb;
+	private volatile int reclamationRate;
+	private long nextReclamationNanos;
+
+	DatabaseReclaimer(Pdb pdb) {
+		this.pdb = pdb;
+		nextReclamationNanos = System.nanoTime();
+	}
+
+	void setReclamationRate(int reclamationRate) {
+		this.reclamationRate = reclamationRate;
+	}
+
+	/**
+	 * Schedules the reclamation of a database commit that has no readers.
+	 *
+	 * @param database The released database commit
+	 */
+	void reclaim(Database database) {
+
+		// the commits released by a reclamation are reclaimed by the same task
+		Queue<Database> releasedDatabases = releasedDatabasesQueue.get();
+		if(releasedDatabases != null) {
+			releasedDatabases.add(database);
+			return;
+		}
+
+		Path databasePath = database.getDatabasePath();
+		FutureTask<Void> reclamation = new FutureTask<>(() -> {
+			Queue<Database> released = new ArrayDeque<>();
+			releasedDatabasesQueue.set(released);
+			try {
+				for(Database next = database; next != null; next = released.poll()) {
+					try {
+						reclaimCommit(next);
+					} catch (IOException | RuntimeException e) {
+						logger.warn("Failed to reclaim commit {} of database {}", next.getCommit(), next.getDatabasePath(), e);
+					}
+				}
+			}
+			finally {
+				releasedDatabasesQueue.remove();
+			}
+		}, null) {
+
+			@Override
+			protected void done() {
+				databasePathToReclamationMap.remove(databasePath, this);
+			}
+		};
+
+		// the reclamations of a database are scheduled in the order they are kept
+		databasePathToReclamationMap.compute(databasePath, (path, lastReclamation) -> {
+			DatabaseSupport.executeReclamation(reclamation);
+			return reclamation;
+		});
+	}
+
+	/**
+	 * Waits for the reclamations of the databases under a path scheduled before this call to complete.
+	 *
+	 * @param path The path of a database or of a container
+	 * @throws IOException if the wait is interrupted
+	 */
+	void await(Path path) throws IOException {
+
+		List<FutureTask<Void>> reclamations = databasePathToReclamationMap.entrySet().stream()
+				.filter(entry -> entry.getKey().startsWith(path)).map(Map.Entry::getValue).toList();
+		try {
+			for(FutureTask<Void> reclamation: reclamations)
+				reclamation.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the reclamations", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to wait for the reclamations", e.getCause());
+		}
+	}
+
+	private void reclaimCommit(Database database) throws IOException {
+
+		Path databasePath = database.getDatabasePath();
+		long commit = database.getCommit();
+
+		Path removeFilesPath = DatabaseSupport.getDatabaseRemoveFilesIndexPath(databasePath, commit);
+		if(Files.exists(removeFilesPath)) {
+			try {
+				for(String indexName: pdb.keyNameToKeyIndexMap.keySet())
+					DatabaseIndexLayers.load(databasePath, indexName, commit).delete();
+
+				List<String> relativeFileNames;
+				try {
+					relativeFileNames = Files.readAllLines(removeFilesPath);
+				}
+				catch (IOException e) {
+					throw new IOException("Failed to read file " + removeFilesPath.toString(), e);
+				}
+
+				FileSystem fileSystem = databasePath.getFileSystem();
+				Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
+				Set<Long> segmentCommits = new HashSet<>();
+				for(String relativeFileName: relativeFileNames) {
+					throttle();
+
+					Path relativeFilePath = fileSystem.getPath(relativeFileName);
+					for(String indexName: pdb.keyNameToKeyIndexMap.keySet()) {
+						Path fileIndexPath = DatabaseSupport.getFileIndexPath(databasePath, relativeFilePath, indexName);
+						try {
+							Files.deleteIfExists(fileIndexPath);
+							Files.deleteIfExists(DatabaseSupport.getFileIndexTailPath(databasePath, relativeFilePath, indexName));
+						} catch (IOException e) {
+							throw new IOException("Failed to remove index file " + fileIndexPath.toString(), e);
+						}
+					}
+
+					try {
+						Files.deleteIfExists(DatabaseSupport.getFileContentHashPath(databasePath, relativeFilePath));
+						Files.deleteIfExists(DatabaseSupport.getDatabaseDataIndexDirectoryPath(databasePath).resolve(relativeFilePath));
+						CompressedDataFile.evict(dataPath.resolve(relativeFilePath));
+						Files.deleteIfExists(dataPath.resolve(relativeFilePath));
+					} catch (IOException e) {
+						throw new IOException("Failed to remove file " + relativeFilePath.toString(), e);
+					}
+
+					segmentCommits.add(new VersionFile(relativeFilePath).getVersion());
+				}
+
+				for(long segmentCommit: segmentCommits)
+					reclaimSegment(databasePath, segmentCommit);
+
+				try {
+					Files.deleteIfExists(removeFilesPath);
+				} catch (IOException e) {
+					throw new IOException("Failed to remove file " + removeFilesPath.toString(), e);
+				}
+
+				Files.deleteIfExists(DatabaseSupport.getDatabaseCommitPath(databasePath, commit));
+			}
+			finally {
+				database.getNextDatabase().readUnlock();
+			}
+		}
+		else if(pdb.isDatabaseDeleted(databasePath))
+			DatabaseSupport.deleteDatabaseDirectories(databasePath);
+		else
+			Files.deleteIfExists(DatabaseSupport.getDatabaseCommitPath(databasePath, commit));
+	}
+
+	/**
+	 * Deletes the segment of a commit once all the data files it indexes are deleted.
+	 */
+	private void reclaimSegment(Path databasePath, long segmentCommit) throws IOException {
+
+		FileIndexSegment segment = FileIndexSegment.open(databasePath, segmentCommit);
+		if(segment == null)
+			return;
+
+		FileSystem fileSystem = databasePath.getFileSystem();
+		Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
+		if(segment.getFileNames().stream().anyMatch(fileName -> Files.exists(dataPath.resolve(fileSystem.getPath(fileName)))))
+			return;
+
+		Path segmentPath = DatabaseSupport.getDatabaseFileIndexSegmentPath(databasePath, segmentCommit);
+		FileIndexSegment.evict(segmentPath);
+		try {
+			Files.deleteIfExists(segmentPath);
+		} catch (IOException e) {
+			throw new IOException("Failed to remove segment file " + segmentPath.toString(), e);
+		}
+	}
+
+	/**
+	 * Paces the deleted data files to the reclamation rate.
+	 */
+	private void throttle() {
+
+		int reclamationRate = this.reclamationRate;
+		if(reclamationRate <= 0)
+			return;
+
+		long now = System.nanoTime();
+		if(nextReclamationNanos - now > 0) {
+			LockSupport.parkNanos(nextReclamationNanos - now);
+			now = System.nanoTime();
+		}
+
+		nextReclamationNanos = (nextReclamationNanos - now > 0 ? nextReclamationNanos : now) + 1_000_000_000L / reclamationRate;
+	}
+}
@@ -1,30 +1,73 @@
 package org.merfu.pdb;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import org.apache.commons.collections4.map.ConcurrentReferenceHashMap;
 
 class DatabaseSupport {
 
 	private static ThreadPoolExecutor internExecutorService;
+	private static ThreadPoolExecutor compactionExecutorService;
+	private static ThreadPoolExecutor reclamationExecutorService;
+	private static ThreadPoolExecutor workExecutorService;
+	private static ThreadPoolExecutor commitExecutorService;
+	private static ThreadPoolExecutor recoveryExecutorService;
 
 	static {
 		int poolSize = (Runtime.getRuntime().availableProcessors() + 4 - 1) / 4;
 		internExecutorService = new ThreadPoolExecutor(poolSize, poolSize, 1, TimeUnit.MINUTES,
 				new SynchronousQueue<>(), new ThreadPoolExecutor.CallerRunsPolicy());
 		
+		compactionExecutorService = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+		compactionExecutorService.allowCoreThreadTimeOut(true);
+
+		reclamationExecutorService = new ThreadPoolExecutor(1, 1, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+		reclamationExecutorService.allowCoreThreadTimeOut(true);
+
+		int workPoolSize = Runtime.getRuntime().availableProcessors();
+		workExecutorService = new ThreadPoolExecutor(workPoolSize, workPoolSize, 1, TimeUnit.MINUTES,
+				new ArrayBlockingQueue<>(workPoolSize), new ThreadPoolExecutor.CallerRunsPolicy());
+		workExecutorService.allowCoreThreadTimeOut(true);
+
+		commitExecutorService = new ThreadPoolExecutor(workPoolSize, workPoolSize, 1, TimeUnit.MINUTES,
+				new ArrayBlockingQueue<>(workPoolSize), new ThreadPoolExecutor.CallerRunsPolicy());
+		commitExecutorService.allowCoreThreadTimeOut(true);
+
+		recoveryExecutorService = new ThreadPoolExecutor(workPoolSize, workPoolSize, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+		recoveryExecutorService.allowCoreThreadTimeOut(true);
+
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 			
 			internExecutorService.shutdown();
+			compactionExecutorService.shutdown();
+			reclamationExecutorService.shutdown();
+			workExecutorService.shutdown();
+			commitExecutorService.shutdown();
+			recoveryExecutorService.shutdown();
 		}));
 	};
 
@@ -44,6 +87,14 @@ class DatabaseSupport {
 		return databasePath.resolve("commit");
 	}
 
+	public static Path getDatabaseCompactionDirectoryPath(Path databasePath) {
+		return databasePath.resolve("compaction");
+	}
+
+	public static Path getDatabaseGroupDirectoryPath(Path databasePath) {
+		return databasePath.resolve("group");
+	}
+
 	public static Path getDatabaseTxDirectoryPath(Path databasePath) {
 		return databasePath.resolve("tx");
 	}
@@ -60,13 +111,27 @@ class DatabaseSupport {
 		return getDatabaseIndexDirectoryPath(databasePath).resolve(indexName + ".idx." + commit);
 	}
 
+	public static Path getDatabaseIndexFencesPath(Path databasePath, String indexName, long commit) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve(indexName + ".fences." + commit);
+	}
+
 	public static Path getDatabaseCommitPath(Path databasePath, long commit) {
 		return getDatabaseIndexDirectoryPath(databasePath).resolve("commit." + commit);
 	}
 
+	/**
+	 * Finds the commit of a database from its manifest, or from its commit file when the manifest is missing or stale.
+	 */
 	public static OptionalLong getDatabaseCommitPath(Path databasePath) throws IOException {
-		return Files.list(getDatabaseIndexDirectoryPath(databasePath)).filter(path -> path.getFileName().toString().matches("commit\\.\\d+"))
-				.mapToLong(path -> new VersionFile(path).getVersion()).findFirst();
+
+		OptionalLong commit = DatabaseManifest.loadCommit(databasePath);
+		if(commit.isPresent())
+			return commit;
+
+		try (Stream<Path> indexPaths = Files.list(getDatabaseIndexDirectoryPath(databasePath))) {
+			return indexPaths.filter(path -> path.getFileName().toString().matches("commit\\.\\d+"))
+					.mapToLong(path -> new VersionFile(path).getVersion()).findFirst();
+		}
 	}
 
 	public static Path getDatabaseFileIndexPath(Path databasePath, String indexName, long commit) {
@@ -77,15 +142,133 @@ class DatabaseSupport {
 		return getDatabaseIndexDirectoryPath(databasePath).resolve("remove.files.idx." + commit);
 	}
 
+	public static Path getDatabaseFileIndexSegmentPath(Path databasePath, long commit) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve("files.segment." + commit);
+	}
+
+	public static Path getDatabaseManifestPath(Path databasePath) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve("manifest");
+	}
+
+	public static Path getDatabaseDeleteFilesPath(Path databasePath) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve("delete.files");
+	}
+
+	public static Path getDatabaseGroupedTransactionsPath(Path databasePath) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve("grouped.tx");
+	}
+
+	public static Path getDatabaseDeltasPath(Path databasePath, String indexName, long commit) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve(indexName + ".deltas." + commit);
+	}
+
+	public static Path getDatabaseDeltaIndexPath(Path databasePath, String indexName, long delta, long commit) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve(indexName + ".delta." + delta + ".idx." + commit);
+	}
+
+	public static Path getDatabaseDeltaFileIndexPath(Path databasePath, String indexName, long delta, long commit) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve(indexName + ".delta." + delta + ".file.idx." + commit);
+	}
+
+	public static Path getDatabaseDeltaTombstonesPath(Path databasePath, String indexName, long delta, long commit) {
+		return getDatabaseIndexDirectoryPath(databasePath).resolve(indexName + ".delta." + delta + ".tombstones." + commit);
+	}
+
 	public static Path getFileIndexPath(Path databasePath, Path relativeFilePath, String indexName) {
 		return DatabaseSupport.getDatabaseDataIndexDirectoryPath(databasePath).resolve(relativeFilePath)
 				.resolve(indexName + ".idx");
 	}
 
+	public static Path getFileIndexTailPath(Path databasePath, Path relativeFilePath, String indexName) {
+		return DatabaseSupport.getDatabaseDataIndexDirectoryPath(databasePath).resolve(relativeFilePath)
+				.resolve(indexName + ".tail.idx");
+	}
+
+	public static Path getFileContentHashPath(Path databasePath, Path relativeFilePath) {
+		return DatabaseSupport.getDatabaseDataIndexDirectoryPath(databasePath).resolve(relativeFilePath)
+				.resolve("content.hash");
+	}
+
+	public static MessageDigest contentDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static void createLink(Path link, Path existing) throws IOException {
+		Files.deleteIfExists(link);
+		Files.createLink(link, existing);
+	}
+
 	public static void executeIntern(Runnable runnable) {
 		internExecutorService.submit(runnable);
 	}
 
+	public static void executeCompaction(Runnable runnable) {
+		compactionExecutorService.submit(runnable);
+	}
+
+	public static Future<?> executeReclamation(Runnable runnable) {
+		return reclamationExecutorService.submit(runnable);
+	}
+
+	public static void executeRecovery(Runnable runnable) {
+		recoveryExecutorService.execute(runnable);
+	}
+
+	public static void executeCommit(Runnable runnable) {
+		commitExecutorService.execute(runnable);
+	}
+
+	/**
+	 * Runs the tasks concurrently on the work pool and waits for all of them to complete. The tasks that do not fit
+	 * in the pool queue run on the calling thread.
+	 * 
+	 * @param <T> The task result type
+	 * @param tasks The tasks
+	 * @return The task results in the order of the tasks
+	 * @throws IOException the failure of the first failed task, the failures of the other tasks are suppressed in it
+	 */
+	public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) throws IOException {
+
+		List<CompletableFuture<T>> futures = new ArrayList<>(tasks.size());
+		for(Callable<T> task: tasks) {
+			futures.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return task.call();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}, workExecutorService));
+		}
+
+		List<T> results = new ArrayList<>(tasks.size());
+		IOException failure = null;
+		for(CompletableFuture<T> future: futures) {
+			try {
+				results.add(future.join());
+			}
+			catch(CompletionException e) {
+				Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+				if(failure == null)
+					failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+				else
+					failure.addSuppressed(cause);
+			}
+		}
+
+		if(failure != null)
+			throw failure;
+
+		return results;
+	}
+
 	public static <K, V> ConcurrentReferenceHashMap<K, V> softValuesMap() {
 
 		return ConcurrentReferenceHashMap.<K, V>builder().strongKeys().softValues().get();
@@ -96,11 +279,82 @@ class DatabaseSupport {
 		return path.getParent().resolve(path.getFileName() + ".part");
 	}
 
+	/**
+	 * Loads the paths deleted by a transaction, the directory paths end with a slash.
+	 * 
+	 * @param txPath The transaction path
+	 * @return The deleted paths
+	 * @throws IOException if an I/O error occurs when reading the delete files
+	 */
+	public static Set<String> loadDeletePaths(Path txPath) throws IOException {
+
+		Path deleteFilesPath = getDatabaseDeleteFilesPath(txPath);
+		if(!Files.isRegularFile(deleteFilesPath))
+			return Set.of();
+
+		try {
+			return new HashSet<>(Files.readAllLines(deleteFilesPath));
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to read delete files " + deleteFilesPath.toString(), e);
+		}
+	}
+
+	/**
+	 * Loads the names of the transactions grouped in a staged group commit.
+	 */
+	public static List<String> loadGroupedTransactions(Path commitDatabasePath) throws IOException {
+
+		Path groupedTransactionsPath = getDatabaseGroupedTransactionsPath(commitDatabasePath);
+		if(!Files.isRegularFile(groupedTransactionsPath))
+			return List.of();
+
+		try {
+			return Files.readAllLines(groupedTransactionsPath);
+		}
+		catch(IOException e) {
+			throw new IOException("Failed to read grouped transactions " + groupedTransactionsPath.toString(), e);
+		}
+	}
+
+	public static boolean isDeleted(Set<String> deletePaths, String fileName) {
+		return deletePaths.contains(fileName)
+				|| deletePaths.stream().anyMatch(deletePath -> deletePath.endsWith("/") && fileName.startsWith(deletePath));
+	}
+
+	/**
+	 * Deletes the index files left by a commit that did not complete.
+	 * 
+	 * @param databasePath The database path
+	 * @param commit The last completed commit
+	 * @throws IOException if an I/O error occurs when listing or deleting the files
+	 */
+	public static void deleteUncommittedIndexFiles(Path databasePath, long commit) throws IOException {
+
+		Path removeFilesPath = getDatabaseRemoveFilesIndexPath(databasePath, commit);
+		try (Stream<Path> indexPaths = Files.list(getDatabaseIndexDirectoryPath(databasePath))) {
+			Iterator<Path> iterator = indexPaths.filter(Files::isRegularFile).iterator();
+			while(iterator.hasNext()) {
+				Path indexPath = iterator.next();
+				String fileName = indexPath.getFileName().toString();
+
+				if(fileName.endsWith(".part") || indexPath.equals(removeFilesPath)
+						|| (!fileName.matches("commit\\.\\d+") && new VersionFile(indexPath).getVersion() > commit)) {
+					FileIndexSegment.evict(indexPath);
+					Files.delete(indexPath);
+				}
+			}
+		}
+	}
+
 	public static void deleteDatabaseDirectories(Path databasePath) throws IOException {
 	
 		Path databaseDataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
 		DatabaseSupport.removeDirectory(databaseDataPath);
 
+		FileIndexSegment.evictAll(databasePath);
+		CompressedDataFile.evictAll(databasePath);
+
 		DatabaseSupport.removeDirectory(databasePath);
 	}
 
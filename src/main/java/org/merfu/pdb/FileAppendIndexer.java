@@ -0,0 +1,203 @@
+package org.merfu.pdb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+import org.merfu.pdb.FileIndexLoader.FileIndexTail;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Indexes a data file that extends the current version of the file in a database by scanning only the appended tail.
+ *
+ * The indexing resumes at the last record of the current version, which the appended data may continue. The file
+ * indexes of the current version are linked and the entries of the appended records are saved in tail file indexes
+ * that replace the entries from the position where the tail starts. The shared prefix is verified by length and by
+ * the content hash persisted with the current version in the same pass that digests the appended file, the current
+ * version is not read.
+ */
+class FileAppendIndexer {
+
+	static private Logger logger = LoggerFactory.getLogger(FileAppendIndexer.class);
+
+	/**
+	 * Indexes an appended data file.
+	 *
+	 * @param databasePath The database path of the appended file
+	 * @param relativeFilePath The appended file path relative to the database data directory
+	 * @param keyIndexes The key indexes of the appended file
+	 * @param baseDatabasePath The database path of the current version
+	 * @param baseRelativeFilePath The current version path relative to the database data directory
+	 * @param contentDigest Receives the content of the appended file
+	 * @return True if the file indexes were created, false if the file does not extend the current version or the
+	 *         current version has no content hash
+	 * @throws IOException if an I/O error occurs when reading the files or writing the file indexes
+	 */
+	public boolean index(Path databasePath, Path relativeFilePath, KeyIndex<?>[] keyIndexes,
+			Path baseDatabasePath, Path baseRelativeFilePath, MessageDigest contentDigest) throws IOException {
+
+		Path dataFilePath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath).resolve(relativeFilePath);
+		Path baseDataFilePath = DatabaseSupport.getDatabaseDataDirectoryPath(baseDatabasePath).resolve(baseRelativeFilePath);
+
+		long baseSize = CompressedDataFile.size(baseDataFilePath);
+		if(Files.size(dataFilePath) < baseSize)
+			return false;
+
+		Path baseContentHashPath = DatabaseSupport.getFileContentHashPath(baseDatabasePath, baseRelativeFilePath);
+		if(!Files.isRegularFile(baseContentHashPath))
+			return false;
+		String baseContentHash = Files.readString(baseContentHashPath);
+
+		FileIndexLoader fileIndexLoader = new FileIndexLoader();
+		Map<String, FileIndexTail> indexNameToBaseTailMap = new HashMap<>();
+		long offset = 0;
+		for(KeyIndex<?> keyIndex: keyIndexes) {
+			String indexName = keyIndex.getName();
+			if(!fileIndexLoader.exists(baseDatabasePath, baseRelativeFilePath, indexName))
+				return false;
+
+			Path baseTailIndexPath = DatabaseSupport.getFileIndexTailPath(baseDatabasePath, baseRelativeFilePath, indexName);
+			FileIndexTail baseTail = Files.isRegularFile(baseTailIndexPath) ? fileIndexLoader.loadTail(baseTailIndexPath) : null;
+			if(baseTail != null)
+				indexNameToBaseTailMap.put(indexName, baseTail);
+
+			// the last record is in the tail when the tail has entries, the entries of the file index are not parsed
+			long lastRecordStart = baseTail == null || baseTail.entries.length == 0
+					? fileIndexLoader.lastRecordStart(baseDatabasePath, baseRelativeFilePath, indexName, baseTail == null ? Long.MAX_VALUE : baseTail.start)
+					: Arrays.stream(baseTail.entries).mapToLong(FileIndexEntry::getRecordStart).max().getAsLong();
+			offset = Math.max(offset, lastRecordStart);
+		}
+
+		Map<String, FileIndexEntry[]> indexNameToEntriesMap = new HashMap<>();
+		try(InputStream fileInput = Files.newInputStream(dataFilePath)) {
+			PrefixDigestInputStream input = new PrefixDigestInputStream(fileInput, contentDigest, baseSize);
+			input.skipNBytes(offset);
+
+			new FileIndexer(false).index(databasePath, relativeFilePath, keyIndexes, input, offset, Map.of())
+					.forEach(fileIndex -> indexNameToEntriesMap.put(fileIndex.getIndexName(), fileIndex.getEntries()));
+			input.transferTo(OutputStream.nullOutputStream());
+
+			if(!HexFormat.of().formatHex(input.getPrefixDigest()).equals(baseContentHash)) {
+				logger.debug("File {} does not extend {}", dataFilePath.toString(), baseDataFilePath.toString());
+				return false;
+			}
+		}
+
+		for(KeyIndex<?> keyIndex: keyIndexes) {
+			String indexName = keyIndex.getName();
+			Path indexPath = DatabaseSupport.getFileIndexPath(databasePath, relativeFilePath, indexName);
+			Path tailIndexPath = DatabaseSupport.getFileIndexTailPath(databasePath, relativeFilePath, indexName);
+			fileIndexLoader.copy(baseDatabasePath, baseRelativeFilePath, indexName, indexPath);
+
+			// the entries of the base tail before the offset are carried to the new tail
+			FileIndexTail baseTail = indexNameToBaseTailMap.get(indexName);
+			long tailStart = baseTail == null ? offset : baseTail.start;
+			FileIndexEntry[] baseTailEntries = baseTail == null ? new FileIndexEntry[0] : baseTail.entries;
+			FileIndexEntry[] tailEntries = FileIndexLoader.merge(baseTailEntries,
+					new FileIndexTail(offset, indexNameToEntriesMap.get(indexName)), keyIndex.getKeyStringComparator());
+			FileIndexer.saveIndex(Long.toString(tailStart, Character.MAX_RADIX), tailEntries, tailIndexPath);
+
+			// a tail larger than the file index it extends is folded into a new file index
+			if(Files.size(tailIndexPath) > Files.size(indexPath)) {
+				FileIndexEntry[] entries = fileIndexLoader.load(databasePath, relativeFilePath, keyIndex).getEntries();
+				FileIndexer.saveIndex(null, entries, indexPath);
+				Files.delete(tailIndexPath);
+			}
+		}
+
+		logger.debug("Indexed file {} from position {}", dataFilePath.toString(), offset);
+		return true;
+	}
+
+	/**
+	 * Digests the data read and keeps the digest of a prefix of the data. Closing this stream does not close the
+	 * underlying stream.
+	 */
+	private static class PrefixDigestInputStream extends FilterInputStream {
+
+		private MessageDigest digest;
+		private long prefixLength;
+		private long position;
+		private byte[] prefixDigest;
+
+		PrefixDigestInputStream(InputStream input, MessageDigest digest, long prefixLength) throws IOException {
+			super(input);
+			this.digest = digest;
+			this.prefixLength = prefixLength;
+			if(prefixLength == 0)
+				prefixDigest = prefixDigest();
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b != -1)
+				update(new byte[] { (byte) b }, 0, 1);
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int count = super.read(b, off, len);
+			if(count > 0)
+				update(b, off, count);
+
+			return count;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			for(int count; skipped < n && (count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) > 0;)
+				skipped += count;
+
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+
+		private void update(byte[] b, int off, int len) throws IOException {
+			if(prefixDigest == null && position + len >= prefixLength) {
+				int prefixCount = (int) (prefixLength - position);
+				digest.update(b, off, prefixCount);
+				prefixDigest = prefixDigest();
+				digest.update(b, off + prefixCount, len - prefixCount);
+			}
+			else
+				digest.update(b, off, len);
+
+			position += len;
+		}
+
+		private byte[] prefixDigest() throws IOException {
+			try {
+				return ((MessageDigest) digest.clone()).digest();
+			} catch (CloneNotSupportedException e) {
+				throw new IOException("Content digest cannot be cloned", e);
+			}
+		}
+
+		byte[] getPrefixDigest() {
+			return prefixDigest;
+		}
+	}
+}
@@ -2,11 +2,10 @@ package org.merfu.pdb;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -25,6 +24,11 @@ class FileIndex {
 	private FileIndexEntry[] entries;
 	private Path relativeDataPath;
 
+	/**
+	 * The keys of the entries of a long index
+	 */
+	private long[] longKeys;
+
 	FileIndex(Path databasePath, String indexName, FileIndexEntry[] entries, Path relativeDataPath) {
 		this.databasePath = databasePath;
 		this.indexName = indexName;
@@ -33,30 +37,53 @@ class FileIndex {
 	}
 
 	<K extends Comparable<K>> void lookup(List<K> keys, KeyIndex<K> keyIndex, Consumer<MatchedRecord<K>> matchedRecordsSink) throws FileNotFoundException {
+		lookup(keys, keyIndex, null, matchedRecordsSink);
+	}
+
+	/**
+	 * Looks up the records of the keys or only their covered fields. The covered fields are taken from the file index
+	 * entries, the data file is read only for the entries indexed before the index covered the fields.
+	 *
+	 * @param fieldNames The covered fields returned instead of the records or null to return the records
+	 */
+	<K extends Comparable<K>> void lookup(List<K> keys, KeyIndex<K> keyIndex, List<String> fieldNames, Consumer<MatchedRecord<K>> matchedRecordsSink) throws FileNotFoundException {
 
 		logger.debug("Executing lookup in file {}", relativeDataPath);
 		Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath).resolve(relativeDataPath);
 
-		try(FileChannel inputChannel = FileChannel.open(dataPath)) {
+		try(DataFileReader inputReader = new DataFileReader(dataPath)) {
 			Path unversionedRelativeFilePath = relativeDataPath.getFileSystem().getPath(new VersionFile(relativeDataPath).getBasename());
+			int[] fieldIndexes = fieldNames == null ? null : coveredFieldIndexes(keyIndex, fieldNames);
 			int fromIndex = 0;
 
 			for(K key: keys) {
-				fromIndex = ArrayUtils.binarySearchFirst(entries, fromIndex, entries.length, key, entry -> keyIndex.fromKeyString(entry.geyKeyString()));
-				FileIndexEntry fileIndexEntry = entries[fromIndex];
-				String record = readRecord(inputChannel, fileIndexEntry);
-				matchedRecordsSink.accept(new MatchedRecord<>(key, record, unversionedRelativeFilePath));
+				fromIndex = binarySearchFirst(fromIndex, key, keyIndex);
+				String keyString = entries[fromIndex].geyKeyString();
 
-				String keyString = fileIndexEntry.geyKeyString();
-				while(++fromIndex < entries.length) {
-					fileIndexEntry = entries[fromIndex];
-					if (fileIndexEntry.geyKeyString().equals(keyString)) {
-						record = readRecord(inputChannel, fileIndexEntry);
+				do {
+					FileIndexEntry fileIndexEntry = entries[fromIndex];
+					if(fieldIndexes == null) {
+						String record = inputReader.readRecord(fileIndexEntry);
 						matchedRecordsSink.accept(new MatchedRecord<>(key, record, unversionedRelativeFilePath));
+						continue;
 					}
-					else
-						break;
+
+					String[] coveredValues = fileIndexEntry.getCoveredValues();
+					if(coveredValues == null) {
+						String record = inputReader.readRecord(fileIndexEntry);
+						int headerEnd = 0;
+						while(headerEnd < record.length() && record.charAt(headerEnd) != '\n' && record.charAt(headerEnd) != '\r')
+							headerEnd++;
+						String recordHeader = record.substring(0, headerEnd);
+						coveredValues = keyIndex.getKeyIndexer(unversionedRelativeFilePath).coveredFieldsFromLine(recordHeader);
+					}
+
+					Map<String, String> fields = new HashMap<>();
+					for(int i = 0; i < fieldIndexes.length; i++)
+						fields.put(fieldNames.get(i), coveredValues == null || fieldIndexes[i] >= coveredValues.length ? null : coveredValues[fieldIndexes[i]]);
+					matchedRecordsSink.accept(new MatchedRecord<>(key, null, unversionedRelativeFilePath, fields));
 				}
+				while(++fromIndex < entries.length && entries[fromIndex].geyKeyString().equals(keyString));
 			}
 		}
 		catch(IOException ex) {
@@ -64,27 +91,33 @@ class FileIndex {
 		}
 	}
 
+	private static int[] coveredFieldIndexes(KeyIndex<?> keyIndex, List<String> fieldNames) {
+
+		List<String> coveredFields = keyIndex.getCoveredFields();
+		return fieldNames.stream().mapToInt(coveredFields::indexOf).toArray();
+	}
+
 	<K extends Comparable<K>> void streamOrdered(List<K> keys, KeyIndex<K> keyIndex, Consumer<MatchedRecord<K>> matchedRecordsSink) throws FileNotFoundException {
 
 		logger.debug("Executing streamOrdered in file {}", relativeDataPath);
 		Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath).resolve(relativeDataPath);
 
-		try(FileChannel inputChannel = FileChannel.open(dataPath)) {
+		try(DataFileReader inputReader = new DataFileReader(dataPath)) {
 			Path unversionedRelativeFilePath = relativeDataPath.getFileSystem().getPath(new VersionFile(relativeDataPath).getBasename());
 
-			int fromIndex = ArrayUtils.binarySearchFirst(entries, 0, entries.length, keys.get(0), entry -> keyIndex.fromKeyString(entry.geyKeyString()));
+			int fromIndex = binarySearchFirst(0, keys.get(0), keyIndex);
 			FileIndexEntry fileIndexEntry = entries[fromIndex];
 			
 			for(K key: keys) {
 
-				String record = readRecord(inputChannel, fileIndexEntry);
+				String record = inputReader.readRecord(fileIndexEntry);
 				matchedRecordsSink.accept(new MatchedRecord<>(key, record, unversionedRelativeFilePath));
 
 				String keyString = fileIndexEntry.geyKeyString();
 				while(++fromIndex < entries.length) {
 					fileIndexEntry = entries[fromIndex];
 					if (fileIndexEntry.geyKeyString().equals(keyString)) {
-						record = readRecord(inputChannel, fileIndexEntry);
+						record = inputReader.readRecord(fileIndexEntry);
 						matchedRecordsSink.accept(new MatchedRecord<>(key, record, unversionedRelativeFilePath));
 					}
 					else
@@ -102,22 +135,22 @@ class FileIndex {
 		logger.debug("Executing streamReversed in file {}", relativeDataPath);
 		Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath).resolve(relativeDataPath);
 
-		try(FileChannel inputChannel = FileChannel.open(dataPath)) {
+		try(DataFileReader inputReader = new DataFileReader(dataPath)) {
 			Path unversionedRelativeFilePath = relativeDataPath.getFileSystem().getPath(new VersionFile(relativeDataPath).getBasename());
 
-			int fromIndex = ArrayUtils.binarySearchLast(entries, 0, entries.length, keys.get(0), entry -> keyIndex.fromKeyString(entry.geyKeyString()));
+			int fromIndex = binarySearchLast(keys.get(0), keyIndex);
 			FileIndexEntry fileIndexEntry = entries[fromIndex];
 			
 			for(K key: keys) {
 
-				String record = readRecord(inputChannel, fileIndexEntry);
+				String record = inputReader.readRecord(fileIndexEntry);
 				matchedRecordsSink.accept(new MatchedRecord<>(key, record, unversionedRelativeFilePath));
 
 				String keyString = fileIndexEntry.geyKeyString();
 				while(--fromIndex >= 0) {
 					fileIndexEntry = entries[fromIndex];
 					if (fileIndexEntry.geyKeyString().equals(keyString)) {
-						record = readRecord(inputChannel, fileIndexEntry);
+						record = inputReader.readRecord(fileIndexEntry);
 						matchedRecordsSink.accept(new MatchedRecord<>(key, record, unversionedRelativeFilePath));
 					}
 					else
@@ -130,20 +163,42 @@ class FileIndex {
 		}
 	}
 
-	private String readRecord(FileChannel inputChannel, FileIndexEntry recordIndexEntry) throws IOException {
-		long recordStart = recordIndexEntry.getRecordStart();
-		long recordEnd = recordIndexEntry.getRecordEnd();
-		inputChannel.position(recordStart);
-		ByteBuffer byteBuffer = ByteBuffer.allocate((int)(recordEnd - recordStart));
-		inputChannel.read(byteBuffer);
-		
-		while (byteBuffer.hasRemaining())
-			inputChannel.read(byteBuffer);
-		
-		byteBuffer.flip();
-		return new String(byteBuffer.array(), StandardCharsets.UTF_8);
+	/**
+	 * Searches the first entry of a key comparing the key strings when they sort in key order.
+	 */
+	private <K extends Comparable<K>> int binarySearchFirst(int fromIndex, K key, KeyIndex<K> keyIndex) {
+
+		if(longKeys != null && key instanceof Long longKey)
+			return ArrayUtils.binarySearchFirst(longKeys, fromIndex, longKeys.length, longKey.longValue());
+
+		String sortedKeyString = keyIndex.toSortedKeyString(key);
+		if(sortedKeyString != null)
+			return ArrayUtils.binarySearchFirst(entries, fromIndex, entries.length, sortedKeyString, FileIndexEntry::geyKeyString);
+
+		return ArrayUtils.binarySearchFirst(entries, fromIndex, entries.length, key, entry -> keyIndex.fromKeyString(entry.geyKeyString()));
 	}
-	
+
+	/**
+	 * Searches the last entry of a key comparing the key strings when they sort in key order.
+	 */
+	private <K extends Comparable<K>> int binarySearchLast(K key, KeyIndex<K> keyIndex) {
+
+		String sortedKeyString = keyIndex.toSortedKeyString(key);
+		if(sortedKeyString != null)
+			return ArrayUtils.binarySearchLast(entries, 0, entries.length, sortedKeyString, FileIndexEntry::geyKeyString);
+
+		return ArrayUtils.binarySearchLast(entries, 0, entries.length, key, entry -> keyIndex.fromKeyString(entry.geyKeyString()));
+	}
+
+	/**
+	 * Decodes the keys of the entries of a long index so that the lookups search them as primitive keys.
+	 */
+	FileIndex decodeLongKeys() {
+
+		longKeys = Stream.of(entries).mapToLong(entry -> LongIndex.parseKeyString(entry.geyKeyString())).toArray();
+		return this;
+	}
+
 	String getIndexName() {
 		return indexName;
 	}
@@ -5,11 +5,17 @@ class FileIndexEntry{
 	private String keyString;
 	private long recordStart;
 	private long recordEnd;
+	private String[] coveredValues;
 	
 	public FileIndexEntry(String keyString, long recordStart, long recordEnd) {
+		this(keyString, recordStart, recordEnd, null);
+	}
+
+	public FileIndexEntry(String keyString, long recordStart, long recordEnd, String[] coveredValues) {
 		this.keyString = keyString;
 		this.recordStart = recordStart;
 		this.recordEnd = recordEnd;
+		this.coveredValues = coveredValues;
 	}
 	
 	public String geyKeyString() {
@@ -24,6 +30,13 @@ class FileIndexEntry{
 		return recordEnd;
 	}
 
+	/**
+	 * @return The values of the fields covered by the index or null if the entry was indexed without them
+	 */
+	public String[] getCoveredValues() {
+		return coveredValues;
+	}
+
 	public void internFields() {
 		keyString = keyString.intern();
 	}
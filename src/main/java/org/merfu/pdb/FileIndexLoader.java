@@ -2,9 +2,13 @@ package org.merfu.pdb;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,40 +17,245 @@ class FileIndexLoader {
 
 	static Logger logger = LoggerFactory.getLogger(FileIndexLoader.class);
 	
-	public FileIndex load(Path databasePath, Path relativeDataPath, String indexName) throws IOException {
+	/**
+	 * Loads the file index of a data file. The file index of an appended file is merged with the entries of the
+	 * appended records.
+	 * 
+	 * @param databasePath The database path
+	 * @param relativeDataPath The data file path relative to the database data directory
+	 * @param keyIndex The key index
+	 * @return The file index
+	 * @throws IOException if an I/O error occurs when reading the file index
+	 */
+	public FileIndex load(Path databasePath, Path relativeDataPath, KeyIndex<?> keyIndex) throws IOException {
+
+		String indexName = keyIndex.getName();
+
+		// the file indexes of a packed commit are sliced from the segment of the commit
+		FileIndexSegment segment = openSegment(databasePath, relativeDataPath);
+		if(segment != null) {
+			String fileIndex = segment.read(relativeDataPath.toString(), indexName);
+			if(fileIndex != null) {
+				try (BufferedReader reader = new BufferedReader(new StringReader(fileIndex))) {
+					return new FileIndex(databasePath, indexName, load(reader), relativeDataPath);
+				}
+			}
+		}
 
 		Path indexPath = DatabaseSupport.getFileIndexPath(databasePath, relativeDataPath, indexName);
 		logger.debug("Start loading file index {} ", indexPath.toString());
 		
-		List<FileIndexEntry> entriesList = new ArrayLinkedList<>();
+		FileIndexEntry[] entries;
 		try (BufferedReader reader = Files.newBufferedReader(indexPath)) {
 			try {
-				String line = reader.readLine();
-				while (line != null) {
-					FileIndexEntry fileIndexEntry = parseRecordIndexEntry(line);
-					entriesList.add(fileIndexEntry);
-					line = reader.readLine();
-				}
+				entries = load(reader);
 			} catch (IOException e) {
 				throw new IOException("Failed to read index file " + indexPath.toString(), e);
 			}
 		}
 
-		FileIndexEntry[] entries = entriesList.toArray(new FileIndexEntry[entriesList.size()]);
-		
 		logger.debug("Completed loading file index {} ", indexPath.toString());
+
+		Path tailIndexPath = DatabaseSupport.getFileIndexTailPath(databasePath, relativeDataPath, indexName);
+		if(Files.isRegularFile(tailIndexPath))
+			entries = merge(entries, loadTail(tailIndexPath), keyIndex.getKeyStringComparator());
 		
 		return new FileIndex(databasePath, indexName, entries, relativeDataPath);
 	}
 
-	private FileIndexEntry parseRecordIndexEntry(String line) {
+	/**
+	 * Checks if a data file has a file index, either in its index directory or in the segment of its commit.
+	 * 
+	 * @param databasePath The database path
+	 * @param relativeDataPath The data file path relative to the database data directory
+	 * @param indexName The index name
+	 * @return True if the file index exists
+	 * @throws IOException if an I/O error occurs when reading the segment
+	 */
+	public boolean exists(Path databasePath, Path relativeDataPath, String indexName) throws IOException {
+
+		if(Files.isRegularFile(DatabaseSupport.getFileIndexPath(databasePath, relativeDataPath, indexName)))
+			return true;
+
+		FileIndexSegment segment = openSegment(databasePath, relativeDataPath);
+		return segment != null && segment.contains(relativeDataPath.toString(), indexName);
+	}
+
+	/**
+	 * Loads the tail file index of an appended file. The first line of the tail file index is the position where the
+	 * tail starts replacing the entries of the file index of the base version, the other lines are the entries of the
+	 * appended records in key order.
+	 * 
+	 * @param tailIndexPath The tail file index path
+	 * @return The tail file index
+	 * @throws IOException if an I/O error occurs when reading the tail file index
+	 */
+	public FileIndexTail loadTail(Path tailIndexPath) throws IOException {
+
+		try (BufferedReader reader = Files.newBufferedReader(tailIndexPath)) {
+			long start = Long.parseLong(reader.readLine(), Character.MAX_RADIX);
+			return new FileIndexTail(start, load(reader));
+		} catch (IOException | RuntimeException e) {
+			throw new IOException("Failed to read index file " + tailIndexPath.toString(), e);
+		}
+	}
+
+	/**
+	 * Finds the start of the last record indexed before a position, parsing only the record starts of the entries.
+	 * 
+	 * @param databasePath The database path
+	 * @param relativeDataPath The data file path relative to the database data directory
+	 * @param indexName The index name
+	 * @param position The position
+	 * @return The last record start or -1 if the file index has no record before the position
+	 * @throws IOException if an I/O error occurs when reading the file index
+	 */
+	public long lastRecordStart(Path databasePath, Path relativeDataPath, String indexName, long position) throws IOException {
+
+		try (BufferedReader reader = openReader(databasePath, relativeDataPath, indexName)) {
+			long lastRecordStart = -1;
+			for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+				int end = 0;
+				while(end < line.length() && line.charAt(end) != ',' && line.charAt(end) != '|')
+					end++;
+
+				long recordStart = Long.parseLong(line, 0, end, Character.MAX_RADIX);
+				if(recordStart < position && recordStart > lastRecordStart)
+					lastRecordStart = recordStart;
+			}
+
+			return lastRecordStart;
+		}
+	}
+
+	/**
+	 * Copies the file index of a data file, without the entries of an appended tail, to a file index file. The file
+	 * index file is linked when the file index is not packed in a segment.
+	 * 
+	 * @param databasePath The database path
+	 * @param relativeDataPath The data file path relative to the database data directory
+	 * @param indexName The index name
+	 * @param indexPath The file index file
+	 * @throws IOException if an I/O error occurs when reading or writing the file index
+	 */
+	public void copy(Path databasePath, Path relativeDataPath, String indexName, Path indexPath) throws IOException {
+
+		Files.createDirectories(indexPath.getParent());
+
+		Path sourceIndexPath = DatabaseSupport.getFileIndexPath(databasePath, relativeDataPath, indexName);
+		if(Files.isRegularFile(sourceIndexPath)) {
+			DatabaseSupport.createLink(indexPath, sourceIndexPath);
+			return;
+		}
+
+		FileIndexSegment segment = openSegment(databasePath, relativeDataPath);
+		String fileIndex = segment == null ? null : segment.read(relativeDataPath.toString(), indexName);
+		if(fileIndex == null)
+			throw new IOException("Missing index file " + sourceIndexPath.toString());
+
+		Files.writeString(indexPath, fileIndex);
+	}
+
+	private BufferedReader openReader(Path databasePath, Path relativeDataPath, String indexName) throws IOException {
+
+		FileIndexSegment segment = openSegment(databasePath, relativeDataPath);
+		if(segment != null) {
+			String fileIndex = segment.read(relativeDataPath.toString(), indexName);
+			if(fileIndex != null)
+				return new BufferedReader(new StringReader(fileIndex));
+		}
+
+		return Files.newBufferedReader(DatabaseSupport.getFileIndexPath(databasePath, relativeDataPath, indexName));
+	}
+
+	/**
+	 * Replaces the entries of the records from the tail start with the entries of the tail.
+	 */
+	static FileIndexEntry[] merge(FileIndexEntry[] entries, FileIndexTail tail, Comparator<String> keyStringComparator) {
+
+		// both parts are in key order, the sort only merges the two runs
+		FileIndexEntry[] mergedEntries = Stream.concat(Arrays.stream(entries).filter(entry -> entry.getRecordStart() < tail.start),
+				Arrays.stream(tail.entries)).toArray(FileIndexEntry[]::new);
+		Arrays.sort(mergedEntries, (o1, o2) -> keyStringComparator.compare(o1.geyKeyString(), o2.geyKeyString()));
+
+		return mergedEntries;
+	}
+
+	private FileIndexSegment openSegment(Path databasePath, Path relativeDataPath) throws IOException {
+
+		long commit = new VersionFile(relativeDataPath).getVersion();
+		return commit < 0 ? null : FileIndexSegment.open(databasePath, commit);
+	}
+
+	private FileIndexEntry[] load(BufferedReader reader) throws IOException {
+
+		List<FileIndexEntry> entriesList = new ArrayLinkedList<>();
+		FrontCoder frontCoder = new FrontCoder();
+		String line = reader.readLine();
+		while (line != null) {
+			FileIndexEntry fileIndexEntry = parseRecordIndexEntry(line, frontCoder);
+			entriesList.add(fileIndexEntry);
+			line = reader.readLine();
+		}
+
+		return entriesList.toArray(new FileIndexEntry[entriesList.size()]);
+	}
+
+	private FileIndexEntry parseRecordIndexEntry(String line, FrontCoder frontCoder) {
 
 		String[] fields = line.split("\\|", 3);
 
-		long recordStart = Long.parseLong(fields[0], Character.MAX_RADIX);
-		long recordEnd = Long.parseLong(fields[1], Character.MAX_RADIX);
-		String keyString = fields[2];
+		// the covered field values follow the record start
+		String[] recordStartFields = fields[0].split(",", -1);
+		long recordStart = Long.parseLong(recordStartFields[0], Character.MAX_RADIX);
+		long recordEnd = Long.parseLong(FrontCoder.stripField(fields[1]), Character.MAX_RADIX);
+		String keyString = frontCoder.decode(fields[1], fields[2]);
+
+		String[] coveredValues = null;
+		if(recordStartFields.length > 1) {
+			coveredValues = new String[recordStartFields.length - 1];
+			for(int i = 0; i < coveredValues.length; i++)
+				coveredValues[i] = unescapeCoveredValue(recordStartFields[i + 1]);
+		}
+
+		return new FileIndexEntry(keyString, recordStart, recordEnd, coveredValues);
+	}
+
+	private String unescapeCoveredValue(String field) {
+
+		if(field.indexOf('%') < 0)
+			return field;
+
+		// a single percent sign is a missing value
+		if(field.length() == 1)
+			return null;
 
-		return new FileIndexEntry(keyString, recordStart, recordEnd);
+		StringBuilder sb = new StringBuilder(field.length());
+		for(int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if(c == '%') {
+				sb.append((char) Integer.parseInt(field, i + 1, i + 3, 16));
+				i += 2;
+			}
+			else
+				sb.append(c);
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * The entries of the records appended to a data file and the position where they start replacing the entries of
+	 * the file index of the base version.
+	 */
+	static class FileIndexTail {
+
+		final long start;
+		final FileIndexEntry[] entries;
+
+		FileIndexTail(long start, FileIndexEntry[] entries) {
+			this.start = start;
+			this.entries = entries;
+		}
 	}
 }
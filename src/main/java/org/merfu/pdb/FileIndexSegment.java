@@ -0,0 +1,160 @@
+package org.merfu.pdb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A segment file packs the file indexes of the data files of a commit.
+ *
+ * The file indexes are stored one after the other in the file index format followed by a directory table with the
+ * index name, the position and the length of each file index and the data file name. The file ends with the position
+ * of the directory table. The segment is mapped in memory when the file system supports it and a file index is
+ * loaded from its slice of the segment found in the directory table.
+ */
+class FileIndexSegment {
+
+	private static Map<Path, FileIndexSegment> pathToSegmentMap = DatabaseSupport.softValuesMap();
+
+	private Path segmentPath;
+	private Map<String, long[]> directory;
+	private ByteBuffer buffer;
+
+	private FileIndexSegment(Path segmentPath, Map<String, long[]> directory, ByteBuffer buffer) {
+		this.segmentPath = segmentPath;
+		this.directory = directory;
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Returns the segment of a commit.
+	 *
+	 * @param databasePath The database path
+	 * @param commit The commit that created the segment
+	 * @return The segment or null if the commit has no segment
+	 * @throws IOException if an I/O error occurs when reading the segment directory
+	 */
+	public static FileIndexSegment open(Path databasePath, long commit) throws IOException {
+
+		Path segmentPath = DatabaseSupport.getDatabaseFileIndexSegmentPath(databasePath, commit);
+		FileIndexSegment segment = pathToSegmentMap.get(segmentPath);
+		if(segment != null)
+			return segment;
+
+		if(!Files.isRegularFile(segmentPath))
+			return null;
+
+		try(FileChannel channel = FileChannel.open(segmentPath)) {
+			long size = channel.size();
+
+			ByteBuffer buffer;
+			try {
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			catch(UnsupportedOperationException e) {
+				buffer = null;
+			}
+
+			long directoryPosition = read(channel, buffer, size - Long.BYTES, Long.BYTES).getLong();
+			String directoryText = StandardCharsets.UTF_8.decode(read(channel, buffer, directoryPosition, (int) (size - Long.BYTES - directoryPosition))).toString();
+
+			Map<String, long[]> directory = new HashMap<>();
+			for(String line: directoryText.split("\n")) {
+				if(line.isEmpty())
+					continue;
+
+				String[] fields = line.split("\\|", 4);
+				directory.put(directoryKey(fields[3], fields[0]),
+						new long[] { Long.parseLong(fields[1], Character.MAX_RADIX), Long.parseLong(fields[2], Character.MAX_RADIX) });
+			}
+
+			segment = new FileIndexSegment(segmentPath, directory, buffer);
+		}
+		catch(NoSuchFileException e) {
+			return null;
+		}
+		catch(IOException | RuntimeException e) {
+			throw new IOException("Failed to read segment file " + segmentPath.toString(), e);
+		}
+
+		pathToSegmentMap.put(segmentPath, segment);
+		return segment;
+	}
+
+	/**
+	 * Drops a deleted segment from the loaded segments.
+	 *
+	 * @param segmentPath The segment path
+	 */
+	public static void evict(Path segmentPath) {
+		pathToSegmentMap.remove(segmentPath);
+	}
+
+	/**
+	 * Drops the loaded segments of a deleted database.
+	 *
+	 * @param databasePath The database path
+	 */
+	public static void evictAll(Path databasePath) {
+		pathToSegmentMap.keySet().removeIf(segmentPath -> segmentPath.startsWith(databasePath));
+	}
+
+	/**
+	 * Reads the file index of a data file.
+	 *
+	 * @param fileName The data file name
+	 * @param indexName The index name
+	 * @return The file index in the file index format or null if the segment does not contain the file index
+	 * @throws IOException if an I/O error occurs when reading the segment
+	 */
+	public String read(String fileName, String indexName) throws IOException {
+
+		long[] slice = directory.get(directoryKey(fileName, indexName));
+		if(slice == null)
+			return null;
+
+		try(FileChannel channel = buffer == null ? FileChannel.open(segmentPath) : null) {
+			return StandardCharsets.UTF_8.decode(read(channel, buffer, slice[0], (int) slice[1])).toString();
+		}
+	}
+
+	public boolean contains(String fileName, String indexName) {
+		return directory.containsKey(directoryKey(fileName, indexName));
+	}
+
+	/**
+	 * @return The data files that have file indexes in this segment
+	 */
+	public Set<String> getFileNames() {
+		Set<String> fileNames = new HashSet<>();
+		directory.keySet().forEach(key -> fileNames.add(key.substring(key.indexOf('|') + 1)));
+
+		return fileNames;
+	}
+
+	private static String directoryKey(String fileName, String indexName) {
+		return indexName + "|" + fileName;
+	}
+
+	private static ByteBuffer read(FileChannel channel, ByteBuffer buffer, long position, int length) throws IOException {
+
+		if(buffer != null)
+			return buffer.slice((int) position, length);
+
+		ByteBuffer slice = ByteBuffer.allocate(length);
+		while(slice.hasRemaining()) {
+			if(channel.read(slice, position + slice.position()) < 0)
+				throw new IOException("Unexpected end of segment file");
+		}
+
+		return slice.flip();
+	}
+}
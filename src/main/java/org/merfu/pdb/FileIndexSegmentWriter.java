@@ -0,0 +1,85 @@
+package org.merfu.pdb;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes the file indexes of the data files of a commit in a segment file, see {@link FileIndexSegment}. The segment
+ * is written to a temporary file that is moved to the segment path when the writer is closed.
+ */
+class FileIndexSegmentWriter implements Closeable {
+
+	private Path segmentPath;
+	private Path tempSegmentPath;
+	private DataOutputStream output;
+	private StringBuilder directory;
+	private long position;
+
+	FileIndexSegmentWriter(Path segmentPath) throws IOException {
+		this.segmentPath = segmentPath;
+
+		tempSegmentPath = DatabaseSupport.temporaryPath(segmentPath);
+		output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempSegmentPath)));
+		directory = new StringBuilder();
+	}
+
+	/**
+	 * Adds a file index persisted in a file index file.
+	 *
+	 * @param fileName The data file name in the segment commit
+	 * @param indexName The index name
+	 * @param fileIndexPath The file index file
+	 * @throws IOException if an I/O error occurs when reading the file index or writing the segment
+	 */
+	public void add(String fileName, String indexName, Path fileIndexPath) throws IOException {
+		add(fileName, indexName, Files.readAllBytes(fileIndexPath));
+	}
+
+	/**
+	 * Adds the entries of a file index.
+	 *
+	 * @param fileName The data file name in the segment commit
+	 * @param indexName The index name
+	 * @param entries The file index entries in key order
+	 * @throws IOException if an I/O error occurs when writing the segment
+	 */
+	public void add(String fileName, String indexName, FileIndexEntry[] entries) throws IOException {
+
+		StringBuilder fileIndex = new StringBuilder();
+		FrontCoder frontCoder = new FrontCoder();
+		for(FileIndexEntry entry: entries)
+			fileIndex.append(FileIndexer.formatFileIndexEntry(entry, frontCoder)).append('\n');
+
+		add(fileName, indexName, fileIndex.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void add(String fileName, String indexName, byte[] fileIndex) throws IOException {
+
+		output.write(fileIndex);
+		directory.append(String.join("|", indexName, Long.toString(position, Character.MAX_RADIX),
+				Integer.toString(fileIndex.length, Character.MAX_RADIX), fileName)).append('\n');
+
+		position += fileIndex.length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			output.write(directory.toString().getBytes(StandardCharsets.UTF_8));
+			output.writeLong(position);
+			output.close();
+		}
+		catch(IOException e) {
+			Files.deleteIfExists(tempSegmentPath);
+			throw new IOException("Failed to persist segment file " + segmentPath.toString(), e);
+		}
+
+		Files.move(tempSegmentPath, segmentPath, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
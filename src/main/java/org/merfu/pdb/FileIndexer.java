@@ -2,6 +2,7 @@ package org.merfu.pdb;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
@@ -20,13 +21,64 @@ class FileIndexer {
 
 	@SuppressWarnings("unused")
 	static private Logger logger = LoggerFactory.getLogger(FileIndexer.class);
+
+	private boolean persist;
+
+	FileIndexer() {
+		this(true);
+	}
+
+	/**
+	 * @param persist False to return the file indexes without saving them in the file index files
+	 */
+	FileIndexer(boolean persist) {
+		this.persist = persist;
+	}
 	
 	public Stream<FileIndex> index(Path databasePath, Path relativeFilePath, KeyIndex<?>[] keyIndexes) throws IOException {
+		return index(databasePath, relativeFilePath, keyIndexes, null);
+	}
+
+	/**
+	 * Indexes a data file reading the file data from the provided stream instead of the data file. The file indexes
+	 * are persisted when the returned stream is consumed.
+	 * 
+	 * @param databasePath The database path
+	 * @param relativeFilePath The data file path relative to the database data directory
+	 * @param keyIndexes The key indexes of the data file
+	 * @param input The file data or null to read the data file
+	 * @return The file indexes
+	 * @throws IOException if an I/O error occurs when reading the file data
+	 */
+	public Stream<FileIndex> index(Path databasePath, Path relativeFilePath, KeyIndex<?>[] keyIndexes, InputStream input) throws IOException {
+		return index(databasePath, relativeFilePath, keyIndexes, input, 0, Map.of());
+	}
+
+	/**
+	 * Indexes the tail of a data file that extends a data file already indexed. The entries of the tail are merged
+	 * with the entries of the indexed part in the new file indexes.
+	 * 
+	 * @param databasePath The database path
+	 * @param relativeFilePath The data file path relative to the database data directory
+	 * @param keyIndexes The key indexes of the data file
+	 * @param input The file data starting at the offset
+	 * @param offset The file position of the first record in the input
+	 * @param indexNameToBaseEntriesMap The entries of the records before the offset for each index
+	 * @return The file indexes
+	 * @throws IOException if an I/O error occurs when reading the file data
+	 */
+	public Stream<FileIndex> index(Path databasePath, Path relativeFilePath, KeyIndex<?>[] keyIndexes, InputStream input,
+			long offset, Map<String, List<FileIndexEntry>> indexNameToBaseEntriesMap) throws IOException {
 
 		Path dataFilePath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath).resolve(relativeFilePath);
 
 		Map<Boolean, List<KeyIndex<?>>> flagToLineKeyIndexersMap = Arrays.stream(keyIndexes).collect(Collectors.partitioningBy(keyIndex -> {
-			return Files.isRegularFile(DatabaseSupport.getFileIndexPath(databasePath, relativeFilePath, keyIndex.getName()));
+			try {
+				return new FileIndexLoader().exists(databasePath, relativeFilePath, keyIndex.getName());
+			} catch (IOException e) {
+				String message = "Failed to check file index " + keyIndex.getName() + " for file " + databasePath.resolve(relativeFilePath).toString();
+				throw new StreamingException(message, e);
+			}
 
 		}));
 
@@ -37,7 +89,7 @@ class FileIndexer {
 			
 			String indexName = keyIndex.getName();
 			try {
-				return new FileIndexLoader().load(databasePath, relativeFilePath, keyIndex.getName());
+				return new FileIndexLoader().load(databasePath, relativeFilePath, keyIndex);
 			} catch (IOException e) {
 				String message = "Failed to load file index " + indexName + " for file " + databasePath.resolve(relativeFilePath).toString();
 				throw new StreamingException(message, e);
@@ -50,9 +102,14 @@ class FileIndexer {
 
 			Map<String, List<FileIndexEntry>> indexNameToEntriesListMap = 
 					missingKeyIndexList.stream().collect(Collectors.toMap(keyIndex -> keyIndex.getName(), lineKeyIndexer -> new ArrayLinkedList<FileIndexEntry>()));
+			indexNameToBaseEntriesMap.forEach((indexName, baseEntries) -> {
+				List<FileIndexEntry> entriesList = indexNameToEntriesListMap.get(indexName);
+				if(entriesList != null)
+					entriesList.addAll(baseEntries);
+			});
 
 			FileFormat fileFormat = missingKeyIndexers.get(missingKeyIndexList.get(0).getName()).getFileFormat();
-			try(LineReader reader = new LineReader(dataFilePath)) {
+			try(LineReader reader = input == null ? new LineReader(dataFilePath) : new LineReader(input)) {
 
 				Callback headerCallback = new Callback() {
 					@Override
@@ -101,7 +158,8 @@ class FileIndexer {
 										missingKeyIndexers.entrySet().stream().forEach(entry -> {
 											String keyString = entry.getValue().keyStringFromLine(recordHeader);
 											if(keyString != null) {
-												FileIndexEntry fileIndexEntry = new FileIndexEntry(keyString, recordStart, position);
+												FileIndexEntry fileIndexEntry = new FileIndexEntry(keyString, offset + recordStart, offset + position,
+														entry.getValue().coveredFieldsFromLine(recordHeader));
 												indexNameToEntriesListMap.get(entry.getKey()).add(fileIndexEntry);
 											}
 										});
@@ -151,12 +209,14 @@ class FileIndexer {
 					}
 				});
 
-				Path indexPath = DatabaseSupport.getFileIndexPath(databasePath, relativeFilePath, indexName);
-				try {
-					saveIndex(entries, indexPath);
-				} catch (IOException e) {
-					String message = "Failed to save index file " + indexPath.toString();
-					throw new StreamingException(message, e);
+				if(persist) {
+					Path indexPath = DatabaseSupport.getFileIndexPath(databasePath, relativeFilePath, indexName);
+					try {
+						saveIndex(null, entries, indexPath);
+					} catch (IOException e) {
+						String message = "Failed to save index file " + indexPath.toString();
+						throw new StreamingException(message, e);
+					}
 				}
 
 				return new FileIndex(databasePath, indexName, entries, relativeFilePath);
@@ -168,15 +228,25 @@ class FileIndexer {
 			return existingFileIndexStream;
 	}
 
-	private void saveIndex(FileIndexEntry[] entries, Path indexPath) throws IOException {
+	/**
+	 * Saves the file index entries in key order to a file index file.
+	 *
+	 * @param header The first line of the file or null
+	 */
+	static void saveIndex(String header, FileIndexEntry[] entries, Path indexPath) throws IOException {
 
 		Files.createDirectories(indexPath.getParent());
 
 		Path tempIndexPath = DatabaseSupport.temporaryPath(indexPath);
 		try (BufferedWriter writer = Files.newBufferedWriter(tempIndexPath)) {
 			try {
+				if(header != null) {
+					writer.write(header);
+					writer.newLine();
+				}
+				FrontCoder frontCoder = new FrontCoder();
 				for (FileIndexEntry entry : entries) {
-					String line = formatFileIndexEntry(entry);
+					String line = formatFileIndexEntry(entry, frontCoder);
 					writer.write(line);
 					writer.newLine();
 				}
@@ -187,14 +257,44 @@ class FileIndexer {
 		Files.move(tempIndexPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
 	}
 
-	private String formatFileIndexEntry(FileIndexEntry entry) {
+	/**
+	 * Formats a file index entry. The covered field values follow the record start separated by commas, with the
+	 * commas, the field separators and the line separators in the values escaped. A missing value is a single percent
+	 * sign, which an escaped value never is.
+	 */
+	static String formatFileIndexEntry(FileIndexEntry entry, FrontCoder frontCoder) {
+		String keyString = entry.geyKeyString();
+		int prefixLength = frontCoder.encode(keyString);
+
+		StringBuilder recordStart = new StringBuilder(Long.toString(entry.getRecordStart(), Character.MAX_RADIX));
+		String[] coveredValues = entry.getCoveredValues();
+		if(coveredValues != null) {
+			for(String coveredValue: coveredValues) {
+				recordStart.append(',');
+				if(coveredValue != null)
+					escapeCoveredValue(coveredValue, recordStart);
+				else
+					recordStart.append('%');
+			}
+		}
+
 		return String.join("|", 
-				Long.toString(entry.getRecordStart(), Character.MAX_RADIX), 
-				Long.toString(entry.getRecordEnd(), Character.MAX_RADIX), 
-				entry.geyKeyString()
+				recordStart, 
+				FrontCoder.formatField(Long.toString(entry.getRecordEnd(), Character.MAX_RADIX), prefixLength), 
+				keyString.substring(prefixLength)
 			);
 	}
 
+	private static void escapeCoveredValue(String coveredValue, StringBuilder sb) {
+		for(int i = 0; i < coveredValue.length(); i++) {
+			char c = coveredValue.charAt(i);
+			switch(c) {
+			case '%', ',', '|', '\n', '\r' -> sb.append('%').append(String.format("%02X", (int) c));
+			default -> sb.append(c);
+			}
+		}
+	}
+
 	final private static class TrailerCallback implements  Callback {
 
 		@Override
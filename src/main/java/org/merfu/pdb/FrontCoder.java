@@ -0,0 +1,79 @@
+package org.merfu.pdb;
+
+/**
+ * Front codes the sorted key strings of the index files.
+ *
+ * A front coded key string is written as the suffix that follows the prefix it shares with the previous key string
+ * and the length of the shared prefix is appended to the field before the key string after a semicolon. Every
+ * {@link #RESTART_INTERVAL}th key string is written in full so that an index file can be read starting at any
+ * restart point, the index fences being restart points. The lines without a prefix length hold full key strings,
+ * which keeps the index files written before the front coding readable.
+ */
+class FrontCoder {
+
+	static int RESTART_INTERVAL = 16;
+
+	private String previousKeyString;
+	private int count;
+
+	/**
+	 * Encodes the next key string.
+	 *
+	 * @param keyString The key string
+	 * @return The length of the prefix shared with the previous key string, 0 at the restart points
+	 */
+	public int encode(String keyString) {
+
+		int prefixLength = 0;
+		if(count++ % RESTART_INTERVAL != 0) {
+			int maxLength = Math.min(previousKeyString.length(), keyString.length());
+			while(prefixLength < maxLength && previousKeyString.charAt(prefixLength) == keyString.charAt(prefixLength))
+				prefixLength++;
+
+			// do not split a surrogate pair
+			if(prefixLength > 0 && Character.isHighSurrogate(keyString.charAt(prefixLength - 1)))
+				prefixLength--;
+		}
+
+		previousKeyString = keyString;
+		return prefixLength;
+	}
+
+	/**
+	 * Appends the prefix length of an encoded key string to the field before the key string.
+	 *
+	 * @param field The field before the key string
+	 * @param prefixLength The shared prefix length returned by {@link #encode(String)}
+	 * @return The field followed by the prefix length
+	 */
+	public static String formatField(String field, int prefixLength) {
+		return prefixLength == 0 ? field : field + ";" + Integer.toString(prefixLength, Character.MAX_RADIX);
+	}
+
+	/**
+	 * Decodes the next key string.
+	 *
+	 * @param field The field before the key string holding the prefix length if the key string is front coded
+	 * @param suffix The key string suffix
+	 * @return The full key string
+	 */
+	public String decode(String field, String suffix) {
+
+		int separatorIndex = field.indexOf(';');
+		String keyString = separatorIndex < 0 ? suffix
+				: previousKeyString.substring(0, Integer.parseInt(field, separatorIndex + 1, field.length(), Character.MAX_RADIX)) + suffix;
+
+		previousKeyString = keyString;
+		return keyString;
+	}
+
+	/**
+	 * @param field The field before the key string
+	 * @return The field without the prefix length
+	 */
+	public static String stripField(String field) {
+
+		int separatorIndex = field.indexOf(';');
+		return separatorIndex < 0 ? field : field.substring(0, separatorIndex);
+	}
+}
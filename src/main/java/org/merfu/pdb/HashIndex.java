@@ -0,0 +1,19 @@
+package org.merfu.pdb;
+
+/**
+ * A database index used only for point lookups. The lookups of a hash index find the key strings of the keys, see
+ * {@link #toKeyString(Comparable)}, in hash tables of the index entries instead of searching the entries in key order.
+ * The ordered searches of a hash index are rejected.
+ * 
+ * @param <K> The index key type
+ */
+abstract public class HashIndex<K extends Comparable<K>> extends KeyIndex<K> {
+
+	/**
+	 * Formats a key as its key string, the inverse of {@link #fromKeyString(String)}.
+	 * 
+	 * @param key The key value
+	 * @return The string representation of the key
+	 */
+	abstract public String toKeyString(K key);
+}
@@ -2,6 +2,7 @@ package org.merfu.pdb;
 
 import java.nio.file.Path;
 import java.util.Comparator;
+import java.util.List;
 
 /**
  * A database index extracts the key from file records, formats the key for persistence and provides the index ordering of the database records.
@@ -57,6 +58,18 @@ abstract public class KeyIndex<K extends Comparable<K>> {
 		};
 	}
 
+	/**
+	 * Returns the key string of a searched key when the key strings of this index sort in key order or null otherwise.
+	 * The index searches compare the key strings of the entries with the key string of the searched key without parsing
+	 * them when it is provided.
+	 * 
+	 * @param key The searched key
+	 * @return The key string or null to compare the parsed keys
+	 */
+	String toSortedKeyString(K key) {
+		return null;
+	}
+
 	/**
 	 * Filters the directories or files that should be indexed by this index. If a directory is filtered out from indexing
 	 * none of the subdirectories or files under the directory structure are tested or indexed.
@@ -67,6 +80,17 @@ abstract public class KeyIndex<K extends Comparable<K>> {
 	 */
 	abstract public boolean canIndex(Path relativePath, boolean isDirectory);
 	
+	/**
+	 * Returns the names of the record fields stored in the file indexes next to the keys. A lookup that requests only
+	 * covered fields is answered from the file indexes without reading the data files, see
+	 * {@link Database#lookup(String, List, List)}. The key indexers of this index extract the covered field values.
+	 * 
+	 * @return The covered field names, none by default
+	 */
+	public List<String> getCoveredFields() {
+		return List.of();
+	}
+
 	/**
 	 * Returns the key indexer for the provided database relative path.
 	 * 
@@ -13,6 +13,15 @@ public interface KeyIndexer<K extends Comparable<K>> {
 	 */
 	public String keyStringFromLine(String line);
 
+	/**
+	 * @param line Data record header line
+	 * @return The values of the covered fields of the index in the order of {@link KeyIndex#getCoveredFields()} or
+	 * null if the index does not cover fields
+	 */
+	default public String[] coveredFieldsFromLine(String line) {
+		return null;
+	}
+
 	/**
 	 * Returns the file format expected by this indexer.
 	 * 
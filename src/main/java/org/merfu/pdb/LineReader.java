@@ -2,9 +2,9 @@ package org.merfu.pdb;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.nio.file.Files;
 import java.nio.file.Path;
 
 class LineReader implements Closeable {
@@ -16,8 +16,12 @@ class LineReader implements Closeable {
 	private int end;
 	
 	public LineReader(Path path) throws IOException {
+		this(CompressedDataFile.newInputStream(path));
+	}
+
+	public LineReader(InputStream input) {
 		
-		this.reader = new InputStreamReader(Files.newInputStream(path));
+		this.reader = new InputStreamReader(input);
 		cb = new char[1024 * 128];
 	}
 	
@@ -0,0 +1,51 @@
+package org.merfu.pdb;
+
+import java.util.Comparator;
+
+/**
+ * A database index for long integer keys, the int keys being indexed as long keys.
+ * 
+ * The key strings are the keys with the sign bit flipped in fixed width base 36 so that the key strings sort in key
+ * order. The lookups of {@link Database#lookup(String, java.util.stream.LongStream)} search the keys of the entries decoded
+ * once as primitive keys, the other index searches compare the key strings of the entries without parsing them.
+ */
+abstract public class LongIndex extends KeyIndex<Long> {
+
+	static int KEY_STRING_LENGTH = 13;
+
+	@Override
+	public Long fromKeyString(String keyString) {
+		return parseKeyString(keyString);
+	}
+
+	/**
+	 * Parses a key string as a primitive key, the inverse of {@link #toKeyString(long)}.
+	 * 
+	 * @param keyString The fixed width key string
+	 * @return The key value
+	 */
+	public static long parseKeyString(String keyString) {
+		return Long.parseUnsignedLong(keyString, Character.MAX_RADIX) ^ Long.MIN_VALUE;
+	}
+
+	/**
+	 * Formats a key as its key string.
+	 * 
+	 * @param key The key value
+	 * @return The fixed width key string
+	 */
+	public static String toKeyString(long key) {
+		String keyString = Long.toUnsignedString(key ^ Long.MIN_VALUE, Character.MAX_RADIX);
+		return "0".repeat(KEY_STRING_LENGTH - keyString.length()) + keyString;
+	}
+
+	@Override
+	String toSortedKeyString(Long key) {
+		return toKeyString(key.longValue());
+	}
+
+	@Override
+	Comparator<String> getKeyStringComparator() {
+		return Comparator.naturalOrder();
+	}
+}
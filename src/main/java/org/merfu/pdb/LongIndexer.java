@@ -0,0 +1,21 @@
+package org.merfu.pdb;
+
+import java.util.OptionalLong;
+
+/**
+ * Indexers for long key types must subclass this class.
+ */
+abstract public class LongIndexer implements KeyIndexer<Long> {
+
+	/**
+	 * @param line Data record header line
+	 * @return The record key or empty if the record has no key
+	 */
+	abstract public OptionalLong keyFromLine(String line);
+
+	@Override
+	public String keyStringFromLine(String line) {
+		OptionalLong key = keyFromLine(line);
+		return key.isPresent() ? LongIndex.toKeyString(key.getAsLong()) : null;
+	}
+}
@@ -46,12 +46,68 @@ public interface LookupFunction<R> {
 	public static <R, K extends Comparable<K>> LookupFunction<R> lookupKeyFunction(String indexName, Function<R,K> referenceDataToKey, LookupFunction<R> fallback) {
 		return (Database database, Stream<R> requestItems) -> {
 
-				return lookupKeys(database, indexName, requestItems, referenceDataToKey, fallback);
+				return lookupKeys(database, requestItems, referenceDataToKey, fallback, keys -> {
+					try {
+						return database.lookup(indexName, keys);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+		};
+	}
+
+	/**
+	 * Creates a lookup function that queries a database index for the greatest key not greater than the key extracted
+	 * from the client input, see {@link Database#lookupFloor}, and falls back to another provided lookup function if
+	 * no key was found.
+	 * 
+	 * @param <R> The client request data
+	 * @param <K> The key type
+	 * @param indexName The index name queried
+	 * @param referenceDataToKey The function that converts the client request data to a key
+	 * @param fallback A fallback lookup function
+	 * @return A lookup function
+	 */
+	public static <R, K extends Comparable<K>> LookupFunction<R> lookupFloorKeyFunction(String indexName, Function<R,K> referenceDataToKey, LookupFunction<R> fallback) {
+		return (Database database, Stream<R> requestItems) -> {
+
+				return lookupKeys(database, requestItems, referenceDataToKey, fallback, keys -> {
+					try {
+						return database.lookupFloor(indexName, keys);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+		};
+	}
+
+	/**
+	 * Creates a lookup function that queries a database index for the least key not less than the key extracted from
+	 * the client input, see {@link Database#lookupCeiling}, and falls back to another provided lookup function if no
+	 * key was found.
+	 * 
+	 * @param <R> The client request data
+	 * @param <K> The key type
+	 * @param indexName The index name queried
+	 * @param referenceDataToKey The function that converts the client request data to a key
+	 * @param fallback A fallback lookup function
+	 * @return A lookup function
+	 */
+	public static <R, K extends Comparable<K>> LookupFunction<R> lookupCeilingKeyFunction(String indexName, Function<R,K> referenceDataToKey, LookupFunction<R> fallback) {
+		return (Database database, Stream<R> requestItems) -> {
+
+				return lookupKeys(database, requestItems, referenceDataToKey, fallback, keys -> {
+					try {
+						return database.lookupCeiling(indexName, keys);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
 		};
 	}
 
-	private static <R, K extends Comparable<K>> Stream<ResponseItem<R>> lookupKeys(Database database, String indexName, Stream<R> requestItems, Function<R,K> referenceDataToKey,
-			LookupFunction<R> fallbackLookup) throws IOException {
+	private static <R, K extends Comparable<K>> Stream<ResponseItem<R>> lookupKeys(Database database, Stream<R> requestItems, Function<R,K> referenceDataToKey,
+			LookupFunction<R> fallbackLookup, Function<List<K>, Stream<MatchedRecord<K>>> keysLookup) throws IOException {
 		
 		try {
 			List<R> noKeyReferenceDataList = new ArrayLinkedList<>();
@@ -66,7 +122,7 @@ public interface LookupFunction<R> {
 			Map<K, List<R>> unmatchedkeyToReferenceData = keyToReferenceData.entrySet().stream().collect(Collectors.toMap(e -> e.getKey(), e -> e.getValue()));
 			
 			List<K> keys = keyToReferenceData.keySet().stream().collect(ArrayLinkedList.collector());
-			Stream<ResponseItem<R>> matchedRecords = database.lookup(indexName, keys).flatMap(p -> {
+			Stream<ResponseItem<R>> matchedRecords = keysLookup.apply(keys).flatMap(p -> {
 				K key = p.getKey();
 				if(p.getDataFilePath() == null)
 					return null;
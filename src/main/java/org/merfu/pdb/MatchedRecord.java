@@ -1,6 +1,7 @@
 package org.merfu.pdb;
 
 import java.nio.file.Path;
+import java.util.Map;
 
 /**
  * Result record returned by a database lookup
@@ -10,14 +11,26 @@ import java.nio.file.Path;
 public class MatchedRecord<K extends Comparable<K>> {
 
 	private K key;
+	private K matchedKey;
 	private String record;
 	private Path dataFilePath;
+	private Map<String, String> fields;
 	
 	MatchedRecord(K key, String record, Path dataFilePath) {
+		this(key, record, dataFilePath, null);
+	}
+
+	MatchedRecord(K key, String record, Path dataFilePath, Map<String, String> fields) {
+		this(key, dataFilePath != null ? key : null, record, dataFilePath, fields);
+	}
+
+	MatchedRecord(K key, K matchedKey, String record, Path dataFilePath, Map<String, String> fields) {
 		super();
 		this.key = key;
+		this.matchedKey = matchedKey;
 		this.record = record;
 		this.dataFilePath = dataFilePath;
+		this.fields = fields;
 	}
 
 	/**
@@ -28,7 +41,15 @@ public class MatchedRecord<K extends Comparable<K>> {
 	}
 
 	/**
-	 * @return The record lines from the file or null if the key was not found
+	 * @return The key of the record, the floor or ceiling key resolved for the key in the request by a nearest key
+	 *         lookup, see {@link Database#lookupFloor}, or null if not found
+	 */
+	public K getMatchedKey() {
+		return matchedKey;
+	}
+
+	/**
+	 * @return The record lines from the file or null if the key was not found or the lookup requested covered fields
 	 */
 	public String getRecord() {
 		return record;
@@ -40,4 +61,11 @@ public class MatchedRecord<K extends Comparable<K>> {
 	public Path getDataFilePath() {
 		return dataFilePath;
 	}
+
+	/**
+	 * @return The covered fields requested by the lookup by field name or null if the lookup requested the records
+	 */
+	public Map<String, String> getFields() {
+		return fields;
+	}
 }
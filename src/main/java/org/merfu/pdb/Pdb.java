@@ -1,23 +1,30 @@
 package org.merfu.pdb;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.OptionalLong;
 import java.util.Set;
-import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.function.Function;
 import java.util.function.LongFunction;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -37,6 +44,21 @@ public class Pdb {
 
 	Map<String, Database> databasesMap;
 
+	private boolean deltaCommits;
+	private boolean contentDedup;
+	private boolean packedFileIndexes;
+	private int indexPartitions = 1;
+	private boolean sparseIndexes;
+	private boolean compressedDataFiles;
+	private DatabaseCompactor compactor;
+	private DatabaseCommitter committer;
+	DatabaseReclaimer reclaimer;
+
+	/**
+	 * The recoveries of the databases that did not complete at startup
+	 */
+	private Map<String, FutureTask<Void>> databaseNameToRecoveryMap;
+
 	/**
 	 * Initializes a new databases container or loads the databases at the provided path if one was created previously.
 	 * 
@@ -45,6 +67,21 @@ public class Pdb {
 	 * @throws IOException if an I/O error occurs when reading or writing the file system
 	 */
 	public Pdb(Path pdbPath, KeyIndex<?>[] keyIndexes) throws IOException {
+		this(pdbPath, keyIndexes, false);
+	}
+
+	/**
+	 * Initializes a new databases container or loads the databases at the provided path if one was created previously.
+	 * The databases are recovered concurrently. With the lazy recovery the databases that need a repair are
+	 * recovered in background and a database is recovered by its first access if its recovery did not complete,
+	 * the databases that need no repair are available immediately.
+	 * 
+	 * @param pdbPath The root path of this database container
+	 * @param keyIndexes The indexes that are used to index the databases in this container
+	 * @param lazyRecovery Recover the databases in background instead of before returning
+	 * @throws IOException if an I/O error occurs when reading or writing the file system
+	 */
+	public Pdb(Path pdbPath, KeyIndex<?>[] keyIndexes, boolean lazyRecovery) throws IOException {
 
 		this.pdbPath = pdbPath;
 		Files.createDirectories(pdbPath);
@@ -60,8 +97,14 @@ public class Pdb {
 		});
 
 		databasesMap = DatabaseSupport.softValuesMap();
-
-		recoverDatabases();
+		compactor = new DatabaseCompactor(this);
+		committer = new DatabaseCommitter(this);
+		reclaimer = new DatabaseReclaimer(this);
+
+		// the recovery does not race the reclamations of a previous container on the same path
+		reclaimer.await(pdbPath);
+		databaseNameToRecoveryMap = new ConcurrentHashMap<>();
+		recoverDatabases(lazyRecovery);
 	}
 
 	/**
@@ -74,6 +117,129 @@ public class Pdb {
 		return keyNameToKeyIndexMap.get(indexName);
 	}
 
+	/**
+	 * Enables or disables the delta commits. A delta commit writes only the index entries of the committed files
+	 * in a delta index that is merged with the base index when the database index is loaded. The deltas are folded
+	 * into the base indexes in background under a size tiered policy.
+	 * 
+	 * When disabled, every commit merges the committed files with the database indexes into new full indexes.
+	 * 
+	 * @param deltaCommits True to enable the delta commits
+	 */
+	public void setDeltaCommits(boolean deltaCommits) {
+		this.deltaCommits = deltaCommits;
+	}
+
+	/**
+	 * Enables or disables the content deduplication. The content hash of the transaction files is computed when they
+	 * are copied and the files with the same content as their current version are dropped from the commit.
+	 * 
+	 * @param contentDedup True to enable the content deduplication
+	 */
+	public void setContentDedup(boolean contentDedup) {
+		this.contentDedup = contentDedup;
+	}
+
+	boolean isContentDedup() {
+		return contentDedup;
+	}
+
+	/**
+	 * Enables or disables the packing of the file indexes. The file indexes of the data files of a commit are written
+	 * in a single segment file of the commit instead of a file index file for each data file and index. The commits
+	 * made before the change are still read from their file index files.
+	 * 
+	 * @param packedFileIndexes True to pack the file indexes of the next commits
+	 */
+	public void setPackedFileIndexes(boolean packedFileIndexes) {
+		this.packedFileIndexes = packedFileIndexes;
+	}
+
+	boolean isPackedFileIndexes() {
+		return packedFileIndexes;
+	}
+
+	/**
+	 * Sets the number of partitions the database indexes are split in when they are loaded. The partitions are loaded
+	 * when a lookup reaches them, the partitions of a lookup being loaded concurrently, and each partition is cached
+	 * separately. The indexes with delta indexes are not partitioned.
+	 * 
+	 * @param indexPartitions The number of partitions of each index, 1 to load the indexes as a whole
+	 */
+	public void setIndexPartitions(int indexPartitions) {
+		this.indexPartitions = Math.max(1, indexPartitions);
+	}
+
+	int getIndexPartitions() {
+		return sparseIndexes ? Integer.MAX_VALUE : indexPartitions;
+	}
+
+	/**
+	 * @return The number of entries between the fences written with the database indexes
+	 */
+	int getFenceInterval() {
+		return sparseIndexes ? DatabaseIndexLoader.SPARSE_BLOCK_SIZE : DatabaseIndexFences.FENCE_INTERVAL;
+	}
+
+	/**
+	 * Enables or disables the sparse database indexes. A sparse index keeps in memory only the key and the file
+	 * position of every 256th entry and loads the blocks of entries between them when a lookup reaches them. The
+	 * positions are written in the fences file of the index when the index is merged, the index file is read once when
+	 * loaded only for the indexes merged before the sparse indexes were enabled. The lookups read the index file more
+	 * often in exchange for a much smaller resident index. Overrides the index partitions when enabled.
+	 * 
+	 * @param sparseIndexes True to load the database indexes as sparse indexes
+	 */
+	public void setSparseIndexes(boolean sparseIndexes) {
+		this.sparseIndexes = sparseIndexes;
+	}
+
+	/**
+	 * Enables or disables the compression of the indexed data files. The data files of the next commits are stored in
+	 * blocks of 64KB compressed independently and a record lookup decompresses only the blocks holding the record. The
+	 * data files committed before the change are still read uncompressed.
+	 * 
+	 * @param compressedDataFiles True to compress the data files of the next commits
+	 */
+	public void setCompressedDataFiles(boolean compressedDataFiles) {
+		this.compressedDataFiles = compressedDataFiles;
+	}
+
+	boolean isCompressedDataFiles() {
+		return compressedDataFiles;
+	}
+
+	/**
+	 * Sets the time a transaction commit waits for other transactions to be committed in the same group commit.
+	 * The transactions committed while the commit of a previous group is in flight are always grouped.
+	 * 
+	 * @param groupCommitWindow The group commit window in milliseconds, 0 to not wait
+	 */
+	public void setGroupCommitWindow(long groupCommitWindow) {
+		committer.setGroupCommitWindow(groupCommitWindow);
+	}
+
+	/**
+	 * Sets the rate the data files replaced by the commits are deleted in background once the last reader of the
+	 * commits before them is released.
+	 * 
+	 * @param reclamationRate The number of data files deleted per second, 0 for no limit
+	 */
+	public void setReclamationRate(int reclamationRate) {
+		reclaimer.setReclamationRate(reclamationRate);
+	}
+
+	/**
+	 * Folds all the delta indexes of a database into new base indexes.
+	 * 
+	 * @param databaseName The database name
+	 * @throws IOException if an I/O error occurs when reading or writing the file system
+	 */
+	public void compactDatabase(String databaseName) throws IOException {
+		awaitRecovery(databaseName);
+		compactor.compact(databaseName, true);
+	}
+
 	/**
 	 * Deletes a database in this container
 	 * 
@@ -82,6 +248,14 @@ public class Pdb {
 	 * @throws IOException if an I/O error occurs when reading the file system
 	 */
 	public Database getDatabase(String databaseName) throws IOException {
+
+		awaitRecovery(databaseName);
+
+		// the current database is taken without locking unless it is being replaced
+		Database currentDatabase = databasesMap.get(databaseName);
+		if(currentDatabase != null && currentDatabase.tryReadLock())
+			return currentDatabase;
+
 		try {
 			return databasesMap.compute(databaseName, (name, db) -> {
 				if(db != null) 
@@ -92,7 +266,9 @@ public class Pdb {
 					return null;
 				
 				try {
-					return lastDatabase(databasePath).get().readLock();
+					// a database is not found before its first commit
+					Optional<Database> database = lastDatabase(databasePath);
+					return database.isPresent() ? database.get().readLock() : null;
 				} catch (IOException e) {
 					throw new UncheckedIOException(e);
 				}
@@ -123,6 +299,8 @@ public class Pdb {
 	 */
 	public void createDatabase(String databaseName) throws IOException {
 
+		awaitRecovery(databaseName);
+
 		databasesMap.compute(databaseName, (name, database) -> {
 
 			Path databasePath = pdbPath.resolve(databaseName);
@@ -141,7 +319,8 @@ public class Pdb {
 				Path databaseDataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
 				Files.createDirectory(databaseDataPath);
 
-				// create empty indexes with commit 0
+				// create empty indexes with commit 0, the empty inventory of the manifest spares listing the data directory
+				persistManifest(databasePath, 0L, List.of());
 				new DatabaseIndexer(this, databasePath, 0).index();
 
 				Path commitPath = DatabaseSupport.getDatabaseCommitPath(databasePath, 0L);
@@ -161,6 +340,65 @@ public class Pdb {
 		});
 	}
 
+	/**
+	 * Creates a new database from the files under a source directory. The files are linked or copied to the database
+	 * data directory with their final names and indexed in the same pass, and the database is created directly at
+	 * its first commit.
+	 * 
+	 * @param databaseName The name of the database unique to this container
+	 * @param sourcePath The source directory root
+	 * @param link Copy or hard link
+	 * @throws IOException if the database exists or an I/O error occurs when reading or writing the file system
+	 */
+	public void bulkLoad(String databaseName, Path sourcePath, boolean link) throws IOException {
+
+		if(!Files.isDirectory(sourcePath))
+			throw new IOException("Path is not a directory: " + sourcePath.toString());
+
+		awaitRecovery(databaseName);
+
+		Path databasePath = pdbPath.resolve(databaseName);
+		Path deletedPath = DatabaseSupport.getDatabaseDeletedPath(databasePath);
+		try {
+			databasesMap.compute(databaseName, (name, database) -> {
+				if(Files.exists(databasePath))
+					throw new UncheckedIOException(new IOException("Database already exists: " + databasePath.toString()));
+
+				try {
+					// the database is not visible before the load completes and it is removed by the recovery after a crash
+					Files.createDirectory(databasePath);
+					Files.createFile(deletedPath);
+					Files.createDirectory(DatabaseSupport.getDatabaseTxDirectoryPath(databasePath));
+					Files.createDirectory(DatabaseSupport.getDatabaseDataDirectoryPath(databasePath));
+					Files.createDirectory(DatabaseSupport.getDatabaseIndexDirectoryPath(databasePath));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				return database;
+			});
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+
+		try {
+			Set<String> fileNames = new DatabaseBulkLoader(this, databasePath, 1).load(sourcePath, link);
+
+			Files.createFile(DatabaseSupport.getDatabaseCommitPath(databasePath, 1));
+			persistManifest(databasePath, 1, fileNames);
+			Files.delete(deletedPath);
+		}
+		catch(IOException | RuntimeException e) {
+			try {
+				DatabaseSupport.deleteDatabaseDirectories(databasePath);
+			} catch (IOException ex) {
+				e.addSuppressed(ex);
+			}
+			throw e;
+		}
+	}
+
 	/**
 	 * Deletes a database.
 	 * 
@@ -169,6 +407,8 @@ public class Pdb {
 	 */
 	public void deleteDatabase(String databaseName) throws IOException {
 
+		awaitRecovery(databaseName);
+
 		try {
 			databasesMap.compute(databaseName, (name, database) -> {
 				
@@ -193,6 +433,9 @@ public class Pdb {
 		catch(UncheckedIOException e) {
 			throw e.getCause();
 		}
+
+		// the database directory is removed by the reclamation of the last commit when it has no readers
+		reclaimer.await(pdbPath.resolve(databaseName));
 	}
 
 	private void deleteDatabase(Path databasePath) throws IOException {
@@ -205,18 +448,114 @@ public class Pdb {
 				|| !Files.isDirectory(DatabaseSupport.getDatabaseDataDirectoryPath(databasePath));
 	}
 
-	private void recoverDatabases() throws IOException {
+	private void recoverDatabases(boolean lazyRecovery) throws IOException {
+
+		List<Path> databasePaths;
+		try (Stream<Path> paths = Files.list(pdbPath)) {
+			databasePaths = paths.filter(Files::isDirectory).toList();
+		}
 
-		try (Stream<Path> databasePaths = Files.list(pdbPath)) {
-			databasePaths.filter(Files::isDirectory).forEach(databasePath -> {
+		// the recoveries run on the recovery executor because they merge the indexes on the work executor
+		List<FutureTask<Void>> recoveries = new ArrayList<>();
+		for(Path databasePath: databasePaths) {
+			FutureTask<Void> recovery = new FutureTask<>(() -> {
 				try {
 					recoverDatabase(databasePath);
 				} catch (IOException e) {
-					throw new UncheckedIOException(new IOException("Failed to load database " + databasePath, e));
+					throw new IOException("Failed to load database " + databasePath, e);
 				}
+				return null;
 			});
-		} catch (UncheckedIOException e) {
-			throw e.getCause();
+
+			if(!lazyRecovery) {
+				recoveries.add(recovery);
+				DatabaseSupport.executeRecovery(recovery);
+			}
+			else if(needsRecovery(databasePath)) {
+				databaseNameToRecoveryMap.put(databasePath.getFileName().toString(), recovery);
+				DatabaseSupport.executeRecovery(recovery);
+			}
+		}
+
+		IOException failure = null;
+		for(FutureTask<Void> recovery: recoveries) {
+			try {
+				awaitRecovery(recovery);
+			}
+			catch(IOException e) {
+				if(failure == null)
+					failure = e;
+				else
+					failure.addSuppressed(e);
+			}
+		}
+
+		if(failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Checks without loading a database if it was left by a commit, a transaction, a compaction or a reclamation that
+	 * did not complete.
+	 */
+	private boolean needsRecovery(Path databasePath) throws IOException {
+
+		if(isDatabaseDeleted(databasePath)
+				|| Files.exists(DatabaseSupport.getDatabaseCommitDirectoryPath(databasePath))
+				|| Files.exists(DatabaseSupport.getDatabaseCompactionDirectoryPath(databasePath))
+				|| Files.exists(DatabaseSupport.getDatabaseGroupDirectoryPath(databasePath)))
+			return true;
+
+		try (Stream<Path> txPaths = Files.list(DatabaseSupport.getDatabaseTxDirectoryPath(databasePath))) {
+			if(txPaths.anyMatch(Files::isDirectory))
+				return true;
+		}
+
+		List<Path> indexPaths;
+		try (Stream<Path> paths = Files.list(DatabaseSupport.getDatabaseIndexDirectoryPath(databasePath))) {
+			indexPaths = paths.filter(Files::isRegularFile).toList();
+		}
+
+		long[] commits = indexPaths.stream().filter(indexPath -> indexPath.getFileName().toString().matches("commit\\.\\d+"))
+				.mapToLong(indexPath -> new VersionFile(indexPath).getVersion()).toArray();
+		if(commits.length != 1)
+			return true;
+
+		long commit = commits[0];
+		Path removeFilesPath = DatabaseSupport.getDatabaseRemoveFilesIndexPath(databasePath, commit);
+		return indexPaths.stream().anyMatch(indexPath -> {
+			String fileName = indexPath.getFileName().toString();
+
+			return fileName.endsWith(".part") || indexPath.equals(removeFilesPath)
+					|| (!fileName.matches("commit\\.\\d+") && new VersionFile(indexPath).getVersion() > commit);
+		});
+	}
+
+	/**
+	 * Completes the recovery of a database that was not recovered at startup. The recovery runs on the calling thread
+	 * if it did not start in background.
+	 */
+	private void awaitRecovery(String databaseName) throws IOException {
+
+		FutureTask<Void> recovery = databaseNameToRecoveryMap.get(databaseName);
+		if(recovery == null)
+			return;
+
+		recovery.run();
+		awaitRecovery(recovery);
+		databaseNameToRecoveryMap.remove(databaseName, recovery);
+	}
+
+	private void awaitRecovery(FutureTask<Void> recovery) throws IOException {
+		try {
+			recovery.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the database recovery", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Failed to recover database", e.getCause());
 		}
 	}
 
@@ -227,7 +566,8 @@ public class Pdb {
 			return;
 		}
 
-		Optional<Database> optionalDatabase = lastDatabase(databasePath);
+		// the commits that were not reclaimed are loaded to be reclaimed
+		Optional<Database> optionalDatabase = loadDatabases(databasePath);
 		if(optionalDatabase.isEmpty()) {
 			DatabaseSupport.removeDirectory(databasePath);
 			return;
@@ -235,39 +575,49 @@ public class Pdb {
 
 		Database database = optionalDatabase.get();
 		long commit = database.getCommit();
+
+		DatabaseSupport.deleteUncommittedIndexFiles(databasePath, commit);
+		DatabaseSupport.removeDirectory(DatabaseSupport.getDatabaseCompactionDirectoryPath(databasePath));
+		DatabaseSupport.removeDirectory(DatabaseSupport.getDatabaseGroupDirectoryPath(databasePath));
 		
+		Path txPath = DatabaseSupport.getDatabaseTxDirectoryPath(databasePath);
 		Path commitDatabasePath = DatabaseSupport.getDatabaseCommitDirectoryPath(databasePath);
 		Database commitDatabase;
 		if(Files.exists(commitDatabasePath)) {
-			try (Database commitedDatabase = new Database(this, commitDatabasePath, 0))  {
-				if(!isDatabaseDeleted(commitDatabasePath)) {
-					
-					OptionalLong optionalCommit = DatabaseSupport.getDatabaseCommitPath(commitDatabasePath);
-					if(optionalCommit.isEmpty()) {
-						optionalCommit = OptionalLong.of(commit);
-						Files.createFile(DatabaseSupport.getDatabaseCommitPath(commitDatabasePath, commit));
-					}
-					
-					if(commit == optionalCommit.getAsLong()) {
-						commitDatabase = mergeCommit(database, commitedDatabase);
-					}
-					else {
-						commitDatabase = database;
-						deleteDatabase(commitDatabasePath);
-					}
+			// the transactions grouped in the staged commit are not committed again over it
+			for(String groupedTxName: DatabaseSupport.loadGroupedTransactions(commitDatabasePath))
+				DatabaseSupport.deleteDatabaseDirectories(txPath.resolve(groupedTxName));
+
+			Database commitedDatabase = new Database(this, commitDatabasePath, 0);
+			if(!isDatabaseDeleted(commitDatabasePath)) {
+				
+				OptionalLong optionalCommit = DatabaseSupport.getDatabaseCommitPath(commitDatabasePath);
+				if(optionalCommit.isEmpty()) {
+					optionalCommit = OptionalLong.of(commit);
+					Files.createFile(DatabaseSupport.getDatabaseCommitPath(commitDatabasePath, commit));
 				}
-				else
+				
+				if(commit == optionalCommit.getAsLong()) {
+					commitDatabase = mergeCommit(database, commitedDatabase);
+				}
+				else {
 					commitDatabase = database;
+					deleteDatabase(commitDatabasePath);
+				}
 			}
+			else
+				commitDatabase = database;
+
+			DatabaseSupport.deleteDatabaseDirectories(commitDatabasePath);
 		}
 		else {
 			commitDatabase = database;
 		}
 
-		Path txPath = DatabaseSupport.getDatabaseTxDirectoryPath(databasePath);
+		Database lastDatabase;
 		try(Stream<Path> txStream = Files.list(txPath)) {
 
-			txStream.filter(Files::isDirectory).map(new Function<Path, Database>() {
+			lastDatabase = txStream.filter(Files::isDirectory).map(new Function<Path, Database>() {
 				private Database lastDb = commitDatabase;
 				
 				public Database apply(Path transactionPath) {
@@ -275,7 +625,7 @@ public class Pdb {
 						Path committedPath = DatabaseSupport.getDatabaseCommittedPath(transactionPath);
 						if (Files.exists(committedPath)) {
 							new DatabaseIndexer(Pdb.this, transactionPath, 0).index();
-							lastDb = commitTransaction(lastDb, databasePath, transactionPath);
+							lastDb = commitTransaction(lastDb, databasePath, transactionPath, List.of());
 						}
 						else {
 							rollbackTransaction(transactionPath);
@@ -287,11 +637,28 @@ public class Pdb {
 					
 					return lastDb;
 				}
-			}).reduce((d1, d2) -> d2).orElse(database);
+			}).reduce((d1, d2) -> d2).orElse(commitDatabase);
 		}
+
+		persistManifest(databasePath, lastDatabase.getCommit(), DatabaseManifest.loadInventory(databasePath, lastDatabase.getCommit()));
 	}
 
+	/**
+	 * Loads the current commit of a database from its manifest or from the commit files when the manifest is stale.
+	 */
 	private Optional<Database> lastDatabase(Path databasePath) throws IOException {
+
+		OptionalLong commit = DatabaseManifest.loadCommit(databasePath);
+		if(commit.isPresent())
+			return Optional.of(loadDatabase(databasePath, commit.getAsLong()));
+
+		return loadDatabases(databasePath);
+	}
+
+	/**
+	 * Loads the commits of a database that were not reclaimed, each commit being released to the next one.
+	 */
+	private Optional<Database> loadDatabases(Path databasePath) throws IOException {
 		
 		try (Stream<Path> indexPaths = Files.list(DatabaseSupport.getDatabaseIndexDirectoryPath(databasePath))) {
 			return indexPaths.filter(Files::isRegularFile)
@@ -309,6 +676,21 @@ public class Pdb {
 	}
 	
 	Database commitTransaction(String commitDatabaseName, Path databasePath, Path txPath) throws IOException {
+
+		Database database = committer.commit(commitDatabaseName, databasePath, txPath);
+
+		if(deltaCommits)
+			compactor.schedule(commitDatabaseName);
+
+		return database;
+	}
+
+	/**
+	 * Commits an indexed transaction.
+	 * 
+	 * @param groupedTxPaths The transactions grouped in the committed transaction that are deleted once it is staged
+	 */
+	Database commitTransaction(String commitDatabaseName, Path databasePath, Path txPath, List<Path> groupedTxPaths) throws IOException {
 		try {
 			return databasesMap.compute(commitDatabaseName, (databaseName, currentDatabase) -> {
 			
@@ -326,7 +708,7 @@ public class Pdb {
 				}
 	
 				try {
-					return commitTransaction(currentDatabase, databasePath, txPath);
+					return commitTransaction(currentDatabase, databasePath, txPath, groupedTxPaths);
 				} catch (IOException e) {
 					throw new UncheckedIOException(e);
 				}
@@ -337,17 +719,43 @@ public class Pdb {
 		}
 	}
 
-	private Database commitTransaction(Database currentDatabase, Path databasePath, Path txPath) throws IOException {
+	void commitCompaction(String databaseName, Path compactionPath, Map<String, DatabaseCompactor.Compaction> indexNameToCompactionMap) throws IOException {
+		try {
+			databasesMap.compute(databaseName, (name, currentDatabase) -> {
+
+				Path databasePath = pdbPath.resolve(name);
+				if(!Files.isDirectory(databasePath) || isDatabaseDeleted(databasePath))
+					return currentDatabase;
+
+				try {
+					if(currentDatabase == null)
+						currentDatabase = lastDatabase(databasePath).get();
+
+					return mergeCompaction(currentDatabase, compactionPath, indexNameToCompactionMap);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		catch(UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+	}
+
+	private Database commitTransaction(Database currentDatabase, Path databasePath, Path txPath, List<Path> groupedTxPaths) throws IOException {
 
 		Path commitDatabasePath = DatabaseSupport.getDatabaseCommitDirectoryPath(databasePath);
 
 		Files.move(txPath, commitDatabasePath);
 
+		// the grouped transactions left by a crash before this point are deleted by the recovery of the staged group
+		for(Path groupedTxPath: groupedTxPaths)
+			DatabaseSupport.deleteDatabaseDirectories(groupedTxPath);
+
 		Files.createFile(DatabaseSupport.getDatabaseCommitPath(commitDatabasePath, currentDatabase.getCommit()));
+		DatabaseManifest.appendCommit(commitDatabasePath, currentDatabase.getCommit());
 		
-		try (Database commitDatabase = new Database(this, commitDatabasePath, 0))  {
-			return mergeCommit(currentDatabase, commitDatabase);
-		}
+		return mergeCommit(currentDatabase, new Database(this, commitDatabasePath, 0));
 	}
 
 	void rollbackTransaction(Path txPath) throws IOException {
@@ -368,174 +776,129 @@ public class Pdb {
 			Path removeFilesPath = DatabaseSupport.getDatabaseRemoveFilesIndexPath(databasePath, commit);
 			Set<String> removeFilesSet = new HashSet<>();
 
-			Stream.of(keyIndexes).forEach(keyIndex -> {
-				String indexName = keyIndex.getName();
-
-				Path nextDatabaseIndexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, indexName,
-						nextCommit);
-				Path nextDatabaseFileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName,
-						nextCommit);
-
-				try {
-					if(commit == 0) {
-						if(!Files.isRegularFile(nextDatabaseIndexPath)) {
-							Path commitDatabaseIndexPath = DatabaseSupport.getDatabaseIndexPath(commitDatabasePath, indexName, 0);
-							Files.createLink(nextDatabaseIndexPath, commitDatabaseIndexPath);
-						}
-
-						Path commitDatabaseFileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(commitDatabasePath, indexName, 0);
-						Map<String,String> fileNameToIdMap = new HashMap<>();
-						try(BufferedReader reader = Files.newBufferedReader(commitDatabaseFileIndexPath)) {
-							String line = reader.readLine();
-							while(line != null) {
-								String[] fields = line.split("\\|");
-								fileNameToIdMap.put(fields[1] + "." + nextCommit, fields[0]);
-
-								line = reader.readLine();
-							}
-						}
+			Set<String> unchangedFileNames = commit == 0 || !contentDedup ? Set.of() : unchangedFileNames(database, commitDatabase);
+			Set<String> deletePaths = DatabaseSupport.loadDeletePaths(commitDatabasePath);
 
-						new DatabaseFileIndexPersister().persist(nextDatabaseFileIndexPath, fileNameToIdMap);
-					}
-					else {
-						DatabaseIndex commitDatabaseIndex = commitDatabase.getIndex(indexName);
-						String[] commitFileNames = commitDatabaseIndex.getFileNames();
-
-						if (commitFileNames.length == 0) {
-							if(!Files.isRegularFile(nextDatabaseIndexPath)) {
-								Path databaseIndexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, indexName,
-										commit);
-								Files.createLink(nextDatabaseIndexPath, databaseIndexPath);
-							}
-
-							if(!Files.isRegularFile(nextDatabaseFileIndexPath)) {
-								Path fileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName,
-										commit);
-								Files.createLink(nextDatabaseFileIndexPath, fileIndexPath);
-							}
-						}
-						else {
-							DatabaseIndex databaseIndex = database.getIndex(indexName);
-							DatabaseIndexEntry[] databaseIndexEntries = databaseIndex.getEntries();
-	
-							DatabaseIndexEntry[] commitDatabaseIndexEntries = commitDatabaseIndex.getEntries();
-	
-							Map<String, List<String>> keystringToPathIdListMap;
-							Map<String, String> fileNameToIdMap = new HashMap<>();
-
-							Set<String> replacedFileNames = Stream.of(commitFileNames).collect(Collectors.toSet());
-							
-							logger.debug("Starting merging database index '{}' under {}...", indexName, databasePath.toString());
-							keystringToPathIdListMap = Stream.concat(Stream.of(databaseIndexEntries)
-									.flatMap(entry -> entry.getFileNames().filter(fileName -> {
-										if (replacedFileNames.contains(
-												new VersionFile(fileSystem.getPath(fileName)).getBasename())) {
-											removeFilesSet.add(fileName);
-											return false;
-										}
-										return true;
-									}).map(fileName -> new SimpleImmutableEntry<>(entry.getKeyString(), fileName))),
-									Stream.of(commitDatabaseIndexEntries)
-											.flatMap(entry -> entry.getFileNames()
-													.map(fileName -> new SimpleImmutableEntry<>(entry.getKeyString(),
-															fileName + "." + nextCommit))))
-									.map(new Function<SimpleImmutableEntry<String, String>, SimpleImmutableEntry<String, String>>() {
-										private int nextFileId;
-										
-										public SimpleImmutableEntry<String, String> apply(SimpleImmutableEntry<String, String> entry) {
-											String dataFileId = fileNameToIdMap.computeIfAbsent(entry.getValue(),
-													fileName -> Integer.toString(++nextFileId, Character.MAX_RADIX));
-		
-											return new SimpleImmutableEntry<>(entry.getKey(), dataFileId);
-										}
-									}).collect(Collectors.groupingBy(SimpleImmutableEntry::getKey,
-											Collectors.mapping(SimpleImmutableEntry::getValue, SinglyLinkedList.collector())));
-							logger.debug("Completed merging database index '{}' under {}", indexName, databasePath.toString());
-
-							logger.debug("Starting saving database index '{}' under {}...", indexName, databasePath.toString());
-							new DatabaseIndexPersister().persist(nextDatabaseIndexPath, keyIndex,
-									keystringToPathIdListMap);
-							new DatabaseFileIndexPersister().persist(nextDatabaseFileIndexPath, fileNameToIdMap);
-							logger.debug("Completed saving database index '{}' under {}", indexName, databasePath.toString());
-						}
+			// the indexes are merged concurrently, the next commit is not visible before all of them complete
+			List<Callable<Set<String>>> mergeTasks = new ArrayList<>();
+			for(KeyIndex<?> keyIndex: keyIndexes) {
+				mergeTasks.add(() -> {
+					try {
+						return mergeCommitIndex(keyIndex, database, commitDatabase, unchangedFileNames, deletePaths);
+					} catch (IOException e) {
+						throw new IOException("Failed to merge index " + keyIndex.getName() + " in database " + databasePath, e);
 					}
-				} catch (IOException e) {
-					throw new UncheckedIOException(new IOException(
-							"Failed to merge index " + indexName + " in database " + databasePath, e));
+				});
+			}
+			try {
+				DatabaseSupport.invokeAll(mergeTasks).forEach(removeFilesSet::addAll);
+			}
+			catch(IOException e) {
+				try {
+					DatabaseSupport.deleteUncommittedIndexFiles(databasePath, commit);
+				} catch (IOException ex) {
+					e.addSuppressed(ex);
 				}
-			});
+				throw e;
+			}
 
 			Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
 			Path commitDataPath = DatabaseSupport.getDatabaseDataDirectoryPath(commitDatabasePath);
 			Path commitDataIndexDirectoryPath = DatabaseSupport.getDatabaseDataIndexDirectoryPath(commitDatabasePath);
 
 			// move the file indexes for the changed files to the database
-			Stream.of(keyIndexes).forEach(keyIndex -> {
+			boolean packed = packedFileIndexes;
+			Map<Path, Path> fileIndexMoves = new HashMap<>();
+			Map<String, List<String>> indexNameToFileNamesMap = new HashMap<>();
+			Set<String> commitFileNames = new LinkedHashSet<>();
+			for(KeyIndex<?> keyIndex: keyIndexes) {
 				String indexName = keyIndex.getName();
 				DatabaseIndex databaseIndex;
 				try {
 					databaseIndex = commitDatabase.getIndex(indexName);
 				} catch (IOException ex) {
-					throw new UncheckedIOException(new IOException(
-							"Failed to load staging index file " + indexName + " in database " + commitDatabasePath,
-							ex));
+					throw new IOException(
+							"Failed to load staging index file " + indexName + " in database " + commitDatabasePath, ex);
 				}
-				Stream.of(databaseIndex.getFileNames()).forEach(fileName -> {
+				for(String fileName: databaseIndex.getFileNames()) {
+					if(unchangedFileNames.contains(fileName))
+						continue;
+
 					Path relativeDataPath = fileSystem.getPath(fileName);
 					Path nextRelativeDataPath = fileSystem.getPath(fileName + "." + nextCommit);
 
-					Path commitFileIndexPath = DatabaseSupport.getFileIndexPath(commitDatabasePath, relativeDataPath,
-							indexName);
-					Path fileIndexPath = DatabaseSupport.getFileIndexPath(databasePath, nextRelativeDataPath,
-							indexName);
-
-					try {
-						if (Files.exists(commitFileIndexPath)) {
-							Files.createDirectories(fileIndexPath.getParent());
-							Files.move(commitFileIndexPath, fileIndexPath);
-						}
-					} catch (IOException ex) {
-						throw new UncheckedIOException(
-								new IOException("Failed to move staging index " + commitFileIndexPath, ex));
+					if(packed)
+						indexNameToFileNamesMap.computeIfAbsent(indexName, name -> new ArrayList<>()).add(fileName);
+					else {
+						fileIndexMoves.put(DatabaseSupport.getFileIndexPath(commitDatabasePath, relativeDataPath, indexName),
+								DatabaseSupport.getFileIndexPath(databasePath, nextRelativeDataPath, indexName));
+						fileIndexMoves.put(DatabaseSupport.getFileIndexTailPath(commitDatabasePath, relativeDataPath, indexName),
+								DatabaseSupport.getFileIndexTailPath(databasePath, nextRelativeDataPath, indexName));
 					}
-				});
-			});
-
-			// move the changed files to the database
-			Stream.of(keyIndexes).map(keyIndex -> {
-				String indexName = keyIndex.getName();
-				try {
-					return commitDatabase.getIndex(indexName);
-				} catch (IOException ex) {
-					throw new UncheckedIOException(new IOException(
-							"Failed to load staging index file " + indexName + " in database " + commitDatabasePath,
-							ex));
+					commitFileNames.add(fileName);
 				}
-			}).flatMap(databaseIndex -> Stream.of(databaseIndex.getFileNames())).distinct().forEach(fileName -> {
-
-				Path commitFilePath = commitDataPath.resolve(fileName);
-				Path databaseFilePath = dataPath.resolve(fileName + "." + nextCommit);
-				Path fileIndexDirectoryPath = commitDataIndexDirectoryPath.resolve(fileName);
-
-				try {
-					if (Files.exists(commitFilePath)) {
-						Files.createDirectories(databaseFilePath.getParent());
-						Files.move(commitFilePath, databaseFilePath);
+			}
+			for(String fileName: commitFileNames)
+				fileIndexMoves.put(DatabaseSupport.getFileContentHashPath(commitDatabasePath, fileSystem.getPath(fileName)),
+						DatabaseSupport.getFileContentHashPath(databasePath, fileSystem.getPath(fileName + "." + nextCommit)));
+
+			// the packed file indexes are copied to the segment of the commit instead of being moved one by one
+			if(packed) {
+				Path segmentPath = DatabaseSupport.getDatabaseFileIndexSegmentPath(databasePath, nextCommit);
+				try(FileIndexSegmentWriter segmentWriter = new FileIndexSegmentWriter(segmentPath)) {
+					for(Map.Entry<String, List<String>> entry: indexNameToFileNamesMap.entrySet()) {
+						for(String fileName: entry.getValue()) {
+							Path relativeDataPath = fileSystem.getPath(fileName);
+							Path fileIndexPath = DatabaseSupport.getFileIndexPath(commitDatabasePath, relativeDataPath, entry.getKey());
+							if(!Files.isRegularFile(fileIndexPath))
+								continue;
+
+							// the tail of an appended file is merged into its file index in the segment
+							if(Files.isRegularFile(DatabaseSupport.getFileIndexTailPath(commitDatabasePath, relativeDataPath, entry.getKey())))
+								segmentWriter.add(fileName + "." + nextCommit, entry.getKey(), new FileIndexLoader()
+										.load(commitDatabasePath, relativeDataPath, keyNameToKeyIndexMap.get(entry.getKey())).getEntries());
+							else
+								segmentWriter.add(fileName + "." + nextCommit, entry.getKey(), fileIndexPath);
+						}
 					}
-					Files.deleteIfExists(fileIndexDirectoryPath);
-
-				} catch (IOException ex) {
-					throw new UncheckedIOException(
-							new IOException("Failed to move staging data file " + commitFilePath, ex));
 				}
-			});
+			}
+			moveFiles(fileIndexMoves, "staging index");
+
+			// move the changed files to the database
+			Map<Path, Path> dataFileMoves = new HashMap<>();
+			for(String fileName: commitFileNames)
+				dataFileMoves.put(commitDataPath.resolve(fileName), dataPath.resolve(fileName + "." + nextCommit));
+			if(compressedDataFiles)
+				compressDataFiles(dataFileMoves.keySet());
+			moveFiles(dataFileMoves, "staging data file");
+
+			if(!packed) {
+				for(String fileName: commitFileNames)
+					Files.deleteIfExists(commitDataIndexDirectoryPath.resolve(fileName));
+			}
 
+			Files.deleteIfExists(removeFilesPath);
 			new DatabaseRemoveFilesPersister().persist(removeFilesPath, removeFilesSet);
 
+			// the data files of the commit are recorded in the manifest, they are rebuilt from the indexes when it is stale
+			Set<String> fileNames = DatabaseManifest.loadInventory(databasePath, commit);
+			if(fileNames == null) {
+				fileNames = new LinkedHashSet<>();
+				for(KeyIndex<?> keyIndex: keyIndexes)
+					fileNames.addAll(Arrays.asList(database.getIndex(keyIndex.getName()).getFileNames()));
+			}
+			fileNames.removeAll(removeFilesSet);
+			for(String fileName: commitFileNames)
+				fileNames.add(fileName + "." + nextCommit);
+
 			Path commitPath = DatabaseSupport.getDatabaseCommitPath(databasePath, nextCommit);
 			Files.createFile(commitPath);
+			persistManifest(databasePath, nextCommit, fileNames);
 
+			// the staging database has no readers, it is deleted before the next commit moves its transaction in place
 			deleteDatabase(commitDatabasePath);
+			DatabaseSupport.deleteDatabaseDirectories(commitDatabasePath);
 
 			Database newDatabase = loadDatabase(databasePath, nextCommit);
 			return mergeNewDatabase(database, newDatabase);
@@ -545,6 +908,298 @@ public class Pdb {
 		}
 	}
 
+	/**
+	 * Finds the committed data files with the same content hash as their current version in the database.
+	 */
+	private Set<String> unchangedFileNames(Database database, Database commitDatabase) throws IOException {
+
+		Path databasePath = database.getDatabasePath();
+		Path commitDatabasePath = commitDatabase.getDatabasePath();
+		FileSystem fileSystem = databasePath.getFileSystem();
+
+		Map<String, String> fileNameToContentHashMap = new HashMap<>();
+		for(KeyIndex<?> keyIndex: keyIndexes) {
+			for(String fileName: commitDatabase.getIndex(keyIndex.getName()).getFileNames()) {
+				Path contentHashPath = DatabaseSupport.getFileContentHashPath(commitDatabasePath, fileSystem.getPath(fileName));
+				if(!fileNameToContentHashMap.containsKey(fileName) && Files.isRegularFile(contentHashPath))
+					fileNameToContentHashMap.put(fileName, Files.readString(contentHashPath));
+			}
+		}
+
+		if(fileNameToContentHashMap.isEmpty())
+			return Set.of();
+
+		Set<String> unchangedFileNames = new HashSet<>();
+		for(Map.Entry<String, String> entry: fileNameToContentHashMap.entrySet()) {
+			String fileName = database.getVersionedFileName(entry.getKey());
+			if(fileName == null)
+				continue;
+
+			Path contentHashPath = DatabaseSupport.getFileContentHashPath(databasePath, fileSystem.getPath(fileName));
+			if(Files.isRegularFile(contentHashPath) && Files.readString(contentHashPath).equals(entry.getValue()))
+				unchangedFileNames.add(entry.getKey());
+		}
+
+		if(!unchangedFileNames.isEmpty())
+			logger.debug("Dropped {} unchanged files from the commit of database {}", unchangedFileNames.size(), databasePath.toString());
+
+		return unchangedFileNames;
+	}
+
+	/**
+	 * Compresses the staged data files that exist in place, concurrently. The file indexes keep the positions in the
+	 * uncompressed data.
+	 */
+	private void compressDataFiles(Collection<Path> dataFilePaths) throws IOException {
+
+		List<Callable<Void>> compressTasks = new ArrayList<>();
+		for(Path dataFilePath: dataFilePaths) {
+			if(Files.isRegularFile(dataFilePath)) {
+				compressTasks.add(() -> {
+					CompressedDataFile.compress(dataFilePath);
+					return null;
+				});
+			}
+		}
+
+		DatabaseSupport.invokeAll(compressTasks);
+	}
+
+	/**
+	 * Moves the staged files that exist to their target paths, the moves to each target directory running concurrently.
+	 */
+	private void moveFiles(Map<Path, Path> sourceToTargetMap, String description) throws IOException {
+
+		Map<Path, List<Path>> targetDirectoryToSourcesMap = new HashMap<>();
+		sourceToTargetMap.forEach((source, target) ->
+			targetDirectoryToSourcesMap.computeIfAbsent(target.getParent(), directory -> new ArrayList<>()).add(source));
+
+		List<Callable<Void>> moveTasks = new ArrayList<>();
+		targetDirectoryToSourcesMap.forEach((directory, sources) -> moveTasks.add(() -> {
+			boolean created = false;
+			for(Path source: sources) {
+				try {
+					if (Files.exists(source)) {
+						if(!created) {
+							Files.createDirectories(directory);
+							created = true;
+						}
+						Files.move(source, sourceToTargetMap.get(source));
+					}
+				} catch (IOException ex) {
+					throw new IOException("Failed to move " + description + " " + source, ex);
+				}
+			}
+			return null;
+		}));
+
+		DatabaseSupport.invokeAll(moveTasks);
+	}
+
+	/**
+	 * Merges the committed index into the next commit index of the database.
+	 * 
+	 * @param deletePaths The files and directories deleted by the commit
+	 * @return The data files replaced or deleted by the commit
+	 */
+	private <K extends Comparable<K>> Set<String> mergeCommitIndex(KeyIndex<K> keyIndex, Database database, Database commitDatabase,
+			Set<String> unchangedFileNames, Set<String> deletePaths) throws IOException {
+
+		String indexName = keyIndex.getName();
+		long commit = database.getCommit();
+		long nextCommit = commit + 1;
+
+		Path databasePath = database.getDatabasePath();
+		Path commitDatabasePath = commitDatabase.getDatabasePath();
+		FileSystem fileSystem = databasePath.getFileSystem();
+
+		Path nextDatabaseIndexPath = DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, nextCommit);
+		Path nextDatabaseFileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, nextCommit);
+
+		if(commit == 0) {
+			if(!Files.isRegularFile(nextDatabaseIndexPath)) {
+				Path commitDatabaseFencesPath = DatabaseSupport.getDatabaseIndexFencesPath(commitDatabasePath, indexName, 0);
+				if(Files.isRegularFile(commitDatabaseFencesPath))
+					DatabaseSupport.createLink(DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, nextCommit), commitDatabaseFencesPath);
+
+				Path commitDatabaseIndexPath = DatabaseSupport.getDatabaseIndexPath(commitDatabasePath, indexName, 0);
+				Files.createLink(nextDatabaseIndexPath, commitDatabaseIndexPath);
+			}
+
+			persistCommitFileIndex(commitDatabasePath, indexName, nextCommit, nextDatabaseFileIndexPath);
+
+			return Set.of();
+		}
+
+		DatabaseIndex commitDatabaseIndex = commitDatabase.getIndex(indexName);
+		String[] commitFileNames = Stream.of(commitDatabaseIndex.getFileNames())
+				.filter(fileName -> !unchangedFileNames.contains(fileName)).toArray(String[]::new);
+
+		DatabaseIndexLayers layers = DatabaseIndexLayers.load(databasePath, indexName, commit);
+		long[] deltas = layers.getDeltas();
+
+		if (commitFileNames.length == 0 && deletePaths.isEmpty()) {
+			layers.link(nextCommit, deltas);
+			DatabaseIndexLayers.persistDeltas(databasePath, indexName, nextCommit, deltas);
+
+			return Set.of();
+		}
+
+		Set<String> replacedFileNames = Stream.of(commitFileNames).collect(Collectors.toSet());
+		Set<String> tombstones = layers.loadTombstones();
+		Set<String> indexRemoveFilesSet = layers.loadLiveFileNames().stream()
+				.filter(fileName -> {
+					String basename = new VersionFile(fileSystem.getPath(fileName)).getBasename();
+					return replacedFileNames.contains(basename) || DatabaseSupport.isDeleted(deletePaths, basename);
+				})
+				.collect(Collectors.toSet());
+
+		if(deltaCommits) {
+			logger.debug("Starting saving delta index '{}' under {}...", indexName, databasePath.toString());
+			layers.link(nextCommit, deltas);
+
+			Path deltaIndexPath = DatabaseSupport.getDatabaseDeltaIndexPath(databasePath, indexName, nextCommit, nextCommit);
+			Path deltaFileIndexPath = DatabaseSupport.getDatabaseDeltaFileIndexPath(databasePath, indexName, nextCommit, nextCommit);
+			if(unchangedFileNames.isEmpty()) {
+				DatabaseSupport.createLink(deltaIndexPath, DatabaseSupport.getDatabaseIndexPath(commitDatabasePath, indexName, 0));
+				persistCommitFileIndex(commitDatabasePath, indexName, nextCommit, deltaFileIndexPath);
+			}
+			else {
+				try(DatabaseIndexReader commitDatabaseIndexReader = new DatabaseIndexReader(commitDatabasePath, indexName, 0)) {
+					new DatabaseIndexMerger<>(keyIndex)
+						.add(commitDatabaseIndexReader, fileName -> unchangedFileNames.contains(fileName) ? null : fileName + "." + nextCommit)
+						.merge(deltaIndexPath, deltaFileIndexPath);
+				}
+			}
+			DatabaseIndexLayers.persistTombstones(DatabaseSupport.getDatabaseDeltaTombstonesPath(databasePath, indexName, nextCommit, nextCommit),
+					indexRemoveFilesSet);
+
+			DatabaseIndexLayers.persistDeltas(databasePath, indexName, nextCommit, LongStream.concat(LongStream.of(deltas), LongStream.of(nextCommit)).toArray());
+			logger.debug("Completed saving delta index '{}' under {}", indexName, databasePath.toString());
+		}
+		else {
+			List<DatabaseIndexReader> readers = layers.open(true, deltas);
+			try(DatabaseIndexReader commitDatabaseIndexReader = new DatabaseIndexReader(commitDatabasePath, indexName, 0)) {
+
+				logger.debug("Starting merging database index '{}' under {}...", indexName, databasePath.toString());
+				DatabaseIndexMerger<K> merger = new DatabaseIndexMerger<>(keyIndex);
+				for(DatabaseIndexReader reader: readers)
+					merger.add(reader, fileName -> tombstones.contains(fileName) || indexRemoveFilesSet.contains(fileName) ? null : fileName);
+
+				merger.add(commitDatabaseIndexReader, fileName -> unchangedFileNames.contains(fileName) ? null : fileName + "." + nextCommit)
+					.merge(nextDatabaseIndexPath, nextDatabaseFileIndexPath, DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, nextCommit),
+							getFenceInterval());
+				logger.debug("Completed merging database index '{}' under {}", indexName, databasePath.toString());
+			}
+			finally {
+				DatabaseIndexLayers.close(readers);
+			}
+
+			DatabaseIndexLayers.persistDeltas(databasePath, indexName, nextCommit, new long[0]);
+		}
+
+		return indexRemoveFilesSet;
+	}
+
+	private void persistCommitFileIndex(Path commitDatabasePath, String indexName, long nextCommit, Path fileIndexPath) throws IOException {
+
+		Path commitDatabaseFileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(commitDatabasePath, indexName, 0);
+		Map<String,String> fileNameToIdMap = new HashMap<>();
+		new DatabaseFileIndexLoader().load(commitDatabaseFileIndexPath)
+			.forEach((fileId, fileName) -> fileNameToIdMap.put(fileName + "." + nextCommit, fileId));
+
+		Files.deleteIfExists(fileIndexPath);
+		new DatabaseFileIndexPersister().persist(fileIndexPath, fileNameToIdMap);
+	}
+
+	private Database mergeCompaction(Database database, Path compactionPath, Map<String, DatabaseCompactor.Compaction> indexNameToCompactionMap) throws IOException {
+
+		long commit = database.getCommit();
+		long nextCommit = commit + 1;
+		Path databasePath = database.getDatabasePath();
+
+		Map<String, DatabaseIndexLayers> indexNameToLayersMap = new HashMap<>();
+		for(KeyIndex<?> keyIndex: keyIndexes) {
+			String indexName = keyIndex.getName();
+			DatabaseIndexLayers layers = DatabaseIndexLayers.load(databasePath, indexName, commit);
+
+			// the deltas are removed only by the compactor or by a full merge that also replaces the base
+			DatabaseCompactor.Compaction compaction = indexNameToCompactionMap.get(indexName);
+			if(compaction != null && !LongStream.of(compaction.getDeltas()).allMatch(delta -> LongStream.of(layers.getDeltas()).anyMatch(d -> d == delta))) {
+				logger.debug("Skipped compaction of database {} changed by a full merge", databasePath.toString());
+				return database;
+			}
+
+			indexNameToLayersMap.put(indexName, layers);
+		}
+
+		Path removeFilesPath = DatabaseSupport.getDatabaseRemoveFilesIndexPath(databasePath, commit);
+		try {
+			for(KeyIndex<?> keyIndex: keyIndexes) {
+				String indexName = keyIndex.getName();
+				DatabaseIndexLayers layers = indexNameToLayersMap.get(indexName);
+				DatabaseCompactor.Compaction compaction = indexNameToCompactionMap.get(indexName);
+
+				if(compaction == null) {
+					layers.link(nextCommit, layers.getDeltas());
+					DatabaseIndexLayers.persistDeltas(databasePath, indexName, nextCommit, layers.getDeltas());
+					continue;
+				}
+
+				long[] nextDeltas = LongStream.of(layers.getDeltas())
+						.filter(delta -> LongStream.of(compaction.getDeltas()).noneMatch(d -> d == delta)).toArray();
+				layers.linkDeltas(nextCommit, nextDeltas);
+
+				Path compactionIndexPath = DatabaseSupport.getDatabaseIndexPath(compactionPath, indexName, 0);
+				Path compactionFileIndexPath = DatabaseSupport.getDatabaseFileIndexPath(compactionPath, indexName, 0);
+
+				if(compaction.isBase()) {
+					Files.move(DatabaseSupport.getDatabaseIndexFencesPath(compactionPath, indexName, 0),
+							DatabaseSupport.getDatabaseIndexFencesPath(databasePath, indexName, nextCommit), StandardCopyOption.REPLACE_EXISTING);
+					Files.move(compactionIndexPath, DatabaseSupport.getDatabaseIndexPath(databasePath, indexName, nextCommit), StandardCopyOption.REPLACE_EXISTING);
+					Files.move(compactionFileIndexPath, DatabaseSupport.getDatabaseFileIndexPath(databasePath, indexName, nextCommit), StandardCopyOption.REPLACE_EXISTING);
+				}
+				else {
+					layers.linkBase(nextCommit);
+
+					Files.move(compactionIndexPath, DatabaseSupport.getDatabaseDeltaIndexPath(databasePath, indexName, nextCommit, nextCommit), StandardCopyOption.REPLACE_EXISTING);
+					Files.move(compactionFileIndexPath, DatabaseSupport.getDatabaseDeltaFileIndexPath(databasePath, indexName, nextCommit, nextCommit), StandardCopyOption.REPLACE_EXISTING);
+					DatabaseIndexLayers.persistTombstones(DatabaseSupport.getDatabaseDeltaTombstonesPath(databasePath, indexName, nextCommit, nextCommit),
+							compaction.getTombstones());
+
+					nextDeltas = LongStream.concat(LongStream.of(nextDeltas), LongStream.of(nextCommit)).toArray();
+				}
+
+				DatabaseIndexLayers.persistDeltas(databasePath, indexName, nextCommit, nextDeltas);
+			}
+
+			// the compaction does not replace data files
+			new DatabaseRemoveFilesPersister().persist(removeFilesPath, Set.of());
+
+			Files.createFile(DatabaseSupport.getDatabaseCommitPath(databasePath, nextCommit));
+		}
+		catch(IOException e) {
+			Files.deleteIfExists(removeFilesPath);
+			throw new IOException("Failed to commit the compaction of database " + databasePath.toString(), e);
+		}
+		persistManifest(databasePath, nextCommit, DatabaseManifest.loadInventory(databasePath, commit));
+
+		Database newDatabase = loadDatabase(databasePath, nextCommit);
+		return mergeNewDatabase(database, newDatabase);
+	}
+
+	/**
+	 * Records the current commit and its data files in the database manifest. A manifest that is not updated is found
+	 * stale and the commit files are listed instead.
+	 */
+	private void persistManifest(Path databasePath, long commit, Collection<String> fileNames) {
+		try {
+			DatabaseManifest.persistCommit(databasePath, commit, fileNames);
+		} catch (IOException e) {
+			logger.warn("Failed to persist the manifest of database {}", databasePath.toString(), e);
+		}
+	}
+
 	private Database loadDatabase(Path databasePath, long nextCommit) {
 		return new Database(this, databasePath, nextCommit);
 	}
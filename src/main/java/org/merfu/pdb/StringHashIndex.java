@@ -0,0 +1,26 @@
+package org.merfu.pdb;
+
+import java.util.Comparator;
+
+/**
+ * A hash index for simple string keys
+ */
+abstract public class StringHashIndex extends HashIndex<String> {
+
+	/**
+	 * The key value is the string representation.
+	 */
+	@Override
+	public String fromKeyString(String keyString) {
+		return keyString;
+	}
+
+	@Override
+	public String toKeyString(String key) {
+		return key;
+	}
+
+	Comparator<String> getKeyStringComparator() {
+		return Comparator.naturalOrder();
+	}
+}
@@ -0,0 +1,68 @@
+package org.merfu.pdb;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Copies the data read from an input stream to an output stream.
+ *
+ * Closing this stream does not close the streams, both are owned by the caller.
+ */
+class TeeInputStream extends FilterInputStream {
+
+	private OutputStream output;
+
+	public TeeInputStream(InputStream input, OutputStream output) {
+		super(input);
+		this.output = output;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if(b != -1)
+			output.write(b);
+
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int count = super.read(b, off, len);
+		if(count > 0)
+			output.write(b, off, count);
+
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		for(int count; skipped < n && (count = read(buffer, 0, (int) Math.min(n - skipped, buffer.length))) > 0;)
+			skipped += count;
+
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Copies the rest of the input stream to the output stream.
+	 *
+	 * @throws IOException if an I/O error occurs when reading or writing the streams
+	 */
+	public void drain() throws IOException {
+		byte[] buffer = new byte[8192];
+		while(read(buffer, 0, buffer.length) != -1);
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+}
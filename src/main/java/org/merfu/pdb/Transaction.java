@@ -2,12 +2,22 @@ package org.merfu.pdb;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.FileVisitResult;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
 /**
  * A transaction is used to add or update files in a database.
@@ -22,6 +32,7 @@ public class Transaction {
 	private boolean committed;
 	private boolean rolledBack;
 	private int writersCount;
+	private CompletableFuture<Long> commitFuture;
 	
 	Transaction(Pdb pdb, Database database, long transactionId) throws IOException {
 
@@ -50,6 +61,36 @@ public class Transaction {
 			return 0;
 
 		if(--writersCount == 0) {
+			if(committed && commitFuture != null) {
+				// the database is released before the future completes
+				DatabaseSupport.executeCommit(() -> {
+					long commit = 0;
+					Exception failure = null;
+					try {
+						commit = executeCommit();
+					}
+					catch(IOException | RuntimeException e) {
+						failure = e;
+					}
+					finally {
+						try {
+							database.readUnlock();
+						} catch (IOException e) {
+							if(failure == null)
+								failure = e;
+							else
+								failure.addSuppressed(e);
+						}
+					}
+
+					if(failure != null)
+						commitFuture.completeExceptionally(failure);
+					else
+						commitFuture.complete(commit);
+				});
+				return writersCount;
+			}
+
 			try {
 				if(committed)
 					executeCommit();
@@ -80,10 +121,14 @@ public class Transaction {
 			Path destinationPath = txDataPath.resolve(relativeDestinationPath);
 			Files.createDirectories(destinationPath.getParent());
 
-			if(link)
+			if(link) {
 				Files.createLink(destinationPath, sourcePath);
+				hashLinkedFile(destinationPath);
+			}
 			else
-				Files.copy(sourcePath, destinationPath);
+				copy(sourcePath, destinationPath);
+
+			persistDataFile(destinationPath);
 		}
 		finally {
 			writeUnlock();
@@ -105,13 +150,131 @@ public class Transaction {
 			Path destinationPath = txDataPath.resolve(relativeDestinationPath);
 			Files.createDirectories(destinationPath.getParent());
 
-			Files.copy(input, destinationPath);
+			copy(input, destinationPath);
+
+			persistDataFile(destinationPath);
+		}
+		finally {
+			writeUnlock();
+		}
+	}
+
+	/**
+	 * Updates a database file with a new version that extends the current version with appended data. Only the
+	 * appended records are indexed when the current version is a prefix of the new version, otherwise the file is
+	 * indexed as a new file.
+	 * 
+	 * @param sourcePath The new version of the file on the local file system
+	 * @param relativeDestinationPath The path of the file in the database
+	 * @param link Copy or hard link
+	 * @throws IOException if an I/O error occurs when reading or writing the file system
+	 */
+	public void appendFile(Path sourcePath, Path relativeDestinationPath, boolean link) throws IOException {
+		try {
+			if(writeLock() == 0)
+				return;
+
+			Path destinationPath = txDataPath.resolve(relativeDestinationPath);
+			Files.createDirectories(destinationPath.getParent());
+
+			if(link)
+				Files.createLink(destinationPath, sourcePath);
+			else
+				transfer(sourcePath, destinationPath);
+			persistDataFile(destinationPath);
+
+			Path relativeFilePath = txDataPath.relativize(destinationPath);
+			KeyIndex<?>[] keyIndexes = DatabaseIndexer.filterKeyIndexes(pdb.keyIndexes, relativeFilePath);
+			if(keyIndexes.length == 0)
+				return;
+
+			// the content hash of an appended file is always persisted, the next append verifies its prefix against it
+			String baseFileName = database.getVersionedFileName(relativeFilePath.toString());
+			MessageDigest digest = DatabaseSupport.contentDigest();
+			if(baseFileName == null || !new FileAppendIndexer().index(txPath, relativeFilePath, keyIndexes,
+					database.getDatabasePath(), relativeFilePath.getFileSystem().getPath(baseFileName), digest)) {
+				digest = DatabaseSupport.contentDigest();
+				try(InputStream input = new DigestInputStream(Files.newInputStream(destinationPath), digest)) {
+					TeeInputStream teeInput = new TeeInputStream(input, OutputStream.nullOutputStream());
+					new FileIndexer().index(txPath, relativeFilePath, keyIndexes, teeInput).forEach(fileIndex -> {});
+					teeInput.drain();
+				}
+			}
+			persistContentHash(relativeFilePath, digest);
+		}
+		finally {
+			writeUnlock();
+		}
+	}
+
+	/**
+	 * Deletes a database file. The file is dropped from the database indexes at commit without reading any data.
+	 * 
+	 * @param relativePath The path of the file in the database
+	 * @throws IOException if an I/O error occurs when writing the file system
+	 */
+	public void deleteFile(Path relativePath) throws IOException {
+		try {
+			if(writeLock() == 0)
+				return;
+
+			Path destinationPath = resolveSourceFileSystemPath(txDataPath, relativePath);
+			Path relativeFilePath = txDataPath.relativize(destinationPath);
+
+			// a file added before by this transaction is deleted too
+			Files.deleteIfExists(destinationPath);
+			DatabaseSupport.removeDirectory(DatabaseSupport.getDatabaseDataIndexDirectoryPath(txPath).resolve(relativeFilePath));
+
+			persistDeletePath(relativeFilePath.toString());
 		}
 		finally {
 			writeUnlock();
 		}
 	}
 
+	/**
+	 * Deletes all the database files under a directory.
+	 * 
+	 * @param relativeDirectoryPath The directory path in the database
+	 * @throws IOException if an I/O error occurs when writing the file system
+	 */
+	public void deleteDir(Path relativeDirectoryPath) throws IOException {
+		try {
+			if(writeLock() == 0)
+				return;
+
+			Path destinationPath = resolveSourceFileSystemPath(txDataPath, relativeDirectoryPath);
+			Path relativeFilePath = txDataPath.relativize(destinationPath);
+
+			// the files added before by this transaction are deleted too
+			DatabaseSupport.removeDirectory(destinationPath);
+			DatabaseSupport.removeDirectory(DatabaseSupport.getDatabaseDataIndexDirectoryPath(txPath).resolve(relativeFilePath));
+
+			persistDeletePath(relativeFilePath.toString() + "/");
+		}
+		finally {
+			writeUnlock();
+		}
+	}
+
+	/**
+	 * Records a data file in the transaction manifest so that the transaction data directory is not listed when the
+	 * transaction is indexed.
+	 */
+	private synchronized void persistDataFile(Path destinationPath) throws IOException {
+		DatabaseManifest.appendDataFile(txPath, txDataPath.relativize(destinationPath));
+	}
+
+	/**
+	 * Appends a delete path to the transaction delete files. A directory path ends with a slash.
+	 */
+	private synchronized void persistDeletePath(String deletePath) throws IOException {
+
+		Path deleteFilesPath = DatabaseSupport.getDatabaseDeleteFilesPath(txPath);
+		Files.createDirectories(deleteFilesPath.getParent());
+		Files.writeString(deleteFilesPath, deletePath + "\n", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
 	/**
 	 * Adds or updates files provided under a database directory on the local files system
 	 * 
@@ -121,7 +284,25 @@ public class Transaction {
 	 * @throws IOException if an I/O error occurs when reading or writing the file system
 	 */
 	public void copyDir(Path sourcePath, Path relativeDestinationPath, boolean link) throws IOException {
+		copyDir(sourcePath, relativeDestinationPath, link, 1);
+	}
+
+	/**
+	 * Adds or updates files provided under a database directory on the local files system copying the files
+	 * concurrently
+	 * 
+	 * @param sourcePath The source directory root
+	 * @param relativeDestinationPath The relative directory path where the database files are created
+	 * @param link Copy or hard link
+	 * @param parallelism The number of files copied concurrently, at least 1
+	 * @throws IOException if an I/O error occurs when reading or writing the file system
+	 * @throws IllegalArgumentException if the parallelism is less than 1
+	 */
+	public void copyDir(Path sourcePath, Path relativeDestinationPath, boolean link, int parallelism) throws IOException {
 		
+		if(parallelism < 1)
+			throw new IllegalArgumentException("Invalid copy parallelism: " + parallelism);
+
 		if(!Files.isDirectory(sourcePath))
 			throw new IOException("Path is not a directory: " + sourcePath.toString());
 
@@ -130,28 +311,132 @@ public class Transaction {
 				return;
 
 			Path rootDestinationPath = (relativeDestinationPath == null ? txDataPath : txDataPath.resolve(relativeDestinationPath));
-			Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+
+			List<Path> files;
+			try(Stream<Path> paths = Files.walk(sourcePath)) {
+				files = paths.filter(Files::isRegularFile).toList();
+			}
+
+			List<List<Path>> partitions = new ArrayList<>();
+			for(int i = 0; i < files.size(); i++) {
+				if(i < parallelism)
+					partitions.add(new ArrayList<>());
+				partitions.get(i % partitions.size()).add(files.get(i));
+			}
+
+			List<Callable<Void>> copyTasks = new ArrayList<>();
+			for(List<Path> partition: partitions) {
+				copyTasks.add(() -> {
+					for(Path file: partition) {
+						Path destinationPath = resolveSourceFileSystemPath(rootDestinationPath, sourcePath.relativize(file));
+						
+						Files.createDirectories(destinationPath.getParent());
 	
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-					Path destinationPath = resolveSourceFileSystemPath(rootDestinationPath, sourcePath.relativize(file));
-					
-					Files.createDirectories(destinationPath.getParent());
-
-					if(link)
-						Files.createLink(destinationPath, file);
-					else
-						Files.copy(file, destinationPath);
+						if(link) {
+							Files.createLink(destinationPath, file);
+							hashLinkedFile(destinationPath);
+						}
+						else
+							copy(file, destinationPath);
 
-					return FileVisitResult.CONTINUE;
-				}
-			});
+						persistDataFile(destinationPath);
+					}
+					return null;
+				});
+			}
+
+			DatabaseSupport.invokeAll(copyTasks);
 		}
 		finally {
 			writeUnlock();
 		}
 	}
 
+	/**
+	 * Copies a file to a transaction file. The file is transferred by the file system without passing the data through
+	 * the heap and it is indexed from a sequential read of the copy.
+	 */
+	private void copy(Path sourcePath, Path destinationPath) throws IOException {
+
+		transfer(sourcePath, destinationPath);
+		index(destinationPath);
+	}
+
+	private void transfer(Path sourcePath, Path destinationPath) throws IOException {
+		try(FileChannel source = FileChannel.open(sourcePath, StandardOpenOption.READ);
+				FileChannel destination = FileChannel.open(destinationPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+
+			long size = source.size();
+			for(long position = 0, count; position < size; position += count) {
+				count = source.transferTo(position, size - position, destination);
+				if(count <= 0)
+					throw new IOException("File " + sourcePath + " was truncated while copied");
+			}
+		}
+	}
+
+	/**
+	 * Copies the data to a transaction file through a channel transfer and indexes it from a sequential read of the
+	 * copy.
+	 */
+	private void copy(InputStream input, Path destinationPath) throws IOException {
+
+		try(ReadableByteChannel source = Channels.newChannel(input);
+				FileChannel destination = FileChannel.open(destinationPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			for(long position = 0, count; (count = destination.transferFrom(source, position, Long.MAX_VALUE - position)) > 0;)
+				position += count;
+		}
+
+		index(destinationPath);
+	}
+
+	/**
+	 * Indexes a transaction file and records its content hash in the same read. The file indexes are found at commit
+	 * and the file is not read again.
+	 */
+	private void index(Path destinationPath) throws IOException {
+
+		Path relativeFilePath = txDataPath.relativize(destinationPath);
+		KeyIndex<?>[] keyIndexes = DatabaseIndexer.filterKeyIndexes(pdb.keyIndexes, relativeFilePath);
+		if(keyIndexes.length == 0)
+			return;
+
+		MessageDigest digest = pdb.isContentDedup() ? DatabaseSupport.contentDigest() : null;
+		try(InputStream input = Files.newInputStream(destinationPath)) {
+			TeeInputStream teeInput = new TeeInputStream(digest == null ? input : new DigestInputStream(input, digest), OutputStream.nullOutputStream());
+			new FileIndexer().index(txPath, relativeFilePath, keyIndexes, teeInput).forEach(fileIndex -> {});
+			teeInput.drain();
+		}
+
+		if(digest != null)
+			persistContentHash(relativeFilePath, digest);
+	}
+
+	/**
+	 * Records the content hash of a transaction file that was not copied through the heap when the content
+	 * deduplication is enabled.
+	 */
+	private void hashLinkedFile(Path destinationPath) throws IOException {
+
+		Path relativeFilePath = txDataPath.relativize(destinationPath);
+		if(!pdb.isContentDedup() || DatabaseIndexer.filterKeyIndexes(pdb.keyIndexes, relativeFilePath).length == 0)
+			return;
+
+		MessageDigest digest = DatabaseSupport.contentDigest();
+		try(InputStream input = new DigestInputStream(Files.newInputStream(destinationPath), digest)) {
+			input.transferTo(OutputStream.nullOutputStream());
+		}
+
+		persistContentHash(relativeFilePath, digest);
+	}
+
+	private void persistContentHash(Path relativeFilePath, MessageDigest digest) throws IOException {
+
+		Path contentHashPath = DatabaseSupport.getFileContentHashPath(txPath, relativeFilePath);
+		Files.createDirectories(contentHashPath.getParent());
+		Files.writeString(contentHashPath, HexFormat.of().formatHex(digest.digest()));
+	}
+
 	private Path resolveSourceFileSystemPath(Path destinationPath, Path sourcePath) {
 		Iterator<Path> iter = sourcePath.iterator();
 		while(iter.hasNext()) {
@@ -178,6 +463,31 @@ public class Transaction {
 		}
 	}
 
+	/**
+	 * Commits this transaction in background. The transaction files are indexed and merged with the existing database
+	 * data on the commit executor once the writers in progress complete. When the commit executor queue is full the
+	 * commit runs on the calling thread.
+	 * 
+	 * @return The future of the database commit that includes this transaction
+	 * @throws IOException if an I/O error occurs when marking the transaction as committed
+	 */
+	synchronized public CompletableFuture<Long> commitAsync() throws IOException {
+		if(commitFuture != null)
+			return commitFuture;
+
+		if(committed || rolledBack)
+			return CompletableFuture.failedFuture(new IOException("Transaction is already " + (committed ? "committed" : "rolled back")));
+
+		Path committedPath = DatabaseSupport.getDatabaseCommittedPath(txPath);
+		if(!Files.isRegularFile(committedPath))
+			Files.createFile(committedPath);
+		committed = true;
+		commitFuture = new CompletableFuture<>();
+		writeUnlock();
+
+		return commitFuture;
+	}
+
 	/**
 	 * Removes the temporary data created for this transaction
 	 *  
@@ -196,13 +506,13 @@ public class Transaction {
 		pdb.rollbackTransaction(txPath);
 	}
 
-	void executeCommit() throws IOException {
+	long executeCommit() throws IOException {
 		new DatabaseIndexer(pdb, txPath, 0).index();
 
 		try {
 			Path databasePath = database.getDatabasePath();
 			String commitDatabaseName = databasePath.getFileName().toString();
-			pdb.commitTransaction(commitDatabaseName, databasePath, txPath);
+			return pdb.commitTransaction(commitDatabaseName, databasePath, txPath).getCommit();
 		}
 		catch(IOException e) {
 			executeRollback();
@@ -0,0 +1,27 @@
+package org.merfu.pdb;
+
+import java.nio.file.Path;
+
+import org.merfu.pdb.KeyIndexer;
+import org.merfu.pdb.LongIndex;
+
+public class GroupNumberIndex extends LongIndex {
+
+	@Override
+	public String getName() {
+		
+		return "groupNumber";
+	}
+
+	@Override
+	public boolean canIndex(Path relativePath, boolean isDirectory) {
+		return "address".equals(relativePath.getName(0).toString());
+	}
+
+	@Override
+	public KeyIndexer<Long> getKeyIndexer(Path relativePath) {
+		
+		return new GroupNumberIndexer();
+	}
+
+}
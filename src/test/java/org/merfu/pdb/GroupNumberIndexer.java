@@ -0,0 +1,21 @@
+package org.merfu.pdb;
+
+import java.util.OptionalLong;
+
+import org.merfu.pdb.FileFormat;
+import org.merfu.pdb.LongIndexer;
+
+public class GroupNumberIndexer extends LongIndexer {
+
+	@Override
+	public OptionalLong keyFromLine(String line) {
+		String groupId = new GroupIdIndexer().keyStringFromLine(line);
+		return groupId == null ? OptionalLong.empty() : OptionalLong.of(Long.parseLong(groupId));
+	}
+
+	@Override
+	public FileFormat getFileFormat() {
+		
+		return new OdaFileFormat();
+	}
+}
@@ -3,21 +3,29 @@ package org.merfu.pdb;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.InputStream;
 import java.io.Reader;
 import java.net.URISyntaxException;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.AfterAll;
@@ -43,6 +51,12 @@ class PdbApplicationTests {
 
 	FileSystem jimfs = Jimfs.newFileSystem();
 	
+	String pdbRoot;
+	boolean deltaCommits;
+	boolean lazyRecovery;
+	boolean packedFileIndexes;
+	int indexPartitions = 1;
+
 	Path pdbPath;
 	Pdb pdb;
 	Database database;
@@ -59,6 +73,10 @@ class PdbApplicationTests {
 	
 	@Test
 	void test() throws Exception {
+		pdbRoot = "/pdb";
+		deltaCommits = false;
+		indexPartitions = 4;
+
 		createPdb();
 		createDatabase();
 		
@@ -80,20 +98,183 @@ class PdbApplicationTests {
 		removeFiles();
 		queryData(0, 4);
 
+		deleteFiles();
+
 		deleteDatabase();
+		indexPartitions = 1;
 	}
 	
+	@Test
+	void testDeltaCommits() throws Exception {
+		pdbRoot = "/pdb-delta";
+		deltaCommits = true;
+
+		createPdb();
+		pdb.setReclamationRate(1000);
+		createDatabase();
+
+		addFiles();
+		queryData(5, 1);
+
+		updateFiles();
+		queryData(6, 0);
+		assertTrue(hasDeltas("groupId"));
+
+		queryOrderedData();
+		queryReversedData();
+
+		removeFiles();
+		queryData(0, 4);
+
+		pdb.compactDatabase("main");
+		assertFalse(hasDeltas("groupId"));
+		queryData(0, 4);
+		queryNoRecordTypeData();
+
+		// test recovery of the compacted database
+		createPdb();
+		queryData(0, 4);
+
+		deleteFiles();
+
+		deleteDatabase();
+	}
+
+	@Test
+	void testGroupCommit() throws Exception {
+		pdbRoot = "/pdb-group";
+		deltaCommits = false;
+
+		createPdb();
+		pdb.setGroupCommitWindow(500);
+		pdb.setContentDedup(true);
+		pdb.setSparseIndexes(true);
+		pdb.setCompressedDataFiles(true);
+		createDatabase();
+
+		addFilesConcurrently();
+		queryData(5, 1);
+		queryNoRecordTypeData();
+		try(Database database = pdb.getDatabase("main");
+				Stream<Path> paths = Files.walk(DatabaseSupport.getDatabaseDataDirectoryPath(database.getDatabasePath()))) {
+			assertTrue(paths.filter(Files::isRegularFile).anyMatch(path -> {
+				try {
+					return CompressedDataFile.isCompressed(path);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}));
+		}
+
+		// the fences of the sparse indexes are written when the indexes are merged
+		try(Database database = pdb.getDatabase("main")) {
+			DatabaseIndexFences fences = DatabaseIndexFences.load(database.getDatabasePath(), "provinceCode", database.getCommit());
+			assertEquals(DatabaseIndexLoader.SPARSE_BLOCK_SIZE, fences.getInterval());
+		}
+
+		republishFiles();
+		queryData(5, 1);
+
+		appendFiles();
+		queryNoRecordTypeData();
+
+		deleteDatabase();
+	}
+
+	@Test
+	void testBulkLoad() throws Exception {
+		pdbRoot = "/pdb-bulk";
+		deltaCommits = false;
+		packedFileIndexes = true;
+
+		createPdb();
+		bulkLoad();
+		queryData(5, 1);
+		queryNoRecordTypeData();
+
+		updateFiles();
+		queryData(6, 0);
+		try(Database database = pdb.getDatabase("main")) {
+			Path databasePath = database.getDatabasePath();
+			assertEquals(2L, DatabaseManifest.loadCommit(databasePath).getAsLong());
+			// the manifest records the data files of the commit
+			Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(databasePath);
+			assertTrue(DatabaseManifest.loadInventory(databasePath, 2).stream().allMatch(fileName -> Files.isRegularFile(dataPath.resolve(fileName))));
+
+			// the file indexes of both commits are packed in their segments
+			assertTrue(Files.isRegularFile(DatabaseSupport.getDatabaseFileIndexSegmentPath(databasePath, 1)));
+			assertTrue(Files.isRegularFile(DatabaseSupport.getDatabaseFileIndexSegmentPath(databasePath, 2)));
+			Path dataIndexPath = DatabaseSupport.getDatabaseDataIndexDirectoryPath(databasePath);
+			if(Files.exists(dataIndexPath)) {
+				try(Stream<Path> paths = Files.walk(dataIndexPath)) {
+					assertFalse(paths.anyMatch(path -> path.getFileName().toString().endsWith(".idx")));
+				}
+			}
+		}
+
+		// test recovery of the bulk loaded database
+		createPdb();
+		queryData(6, 0);
+
+		// test lazy recovery of a database left by a compaction that did not complete
+		Path compactionPath = DatabaseSupport.getDatabaseCompactionDirectoryPath(pdbPath.resolve("main"));
+		Files.createDirectory(compactionPath);
+		lazyRecovery = true;
+		createPdb();
+		lazyRecovery = false;
+		queryData(6, 0);
+		assertFalse(Files.exists(compactionPath));
+
+		deleteDatabase();
+		packedFileIndexes = false;
+	}
+
+	void bulkLoad() throws Exception {
+
+		Path sourcePath = jimfs.getPath("/bulk-source");
+		Files.createDirectories(sourcePath.resolve("address"));
+		for(String name: List.of("BEAVER COUNTY", "GRIM"))
+			Files.copy(Paths.get(ClassLoader.getSystemResource("data/init/" + name).toURI()), sourcePath.resolve("address").resolve(name));
+		try(InputStream input = ClassLoader.getSystemResource("data/init/province").openStream()) {
+			Files.copy(input, sourcePath.resolve("province"));
+		}
+
+		pdb.bulkLoad("main", sourcePath, true);
+		assertThrows(IOException.class, () -> pdb.bulkLoad("main", sourcePath, true));
+
+		try(Database database = pdb.getDatabase("main")) {
+			assertEquals(1L, database.getCommit());
+			assertEquals(1L, DatabaseManifest.loadCommit(database.getDatabasePath()).getAsLong());
+			assertTrue(DatabaseManifest.loadInventory(database.getDatabasePath(), 1).contains("address/GRIM.1"));
+
+			Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(database.getDatabasePath());
+			for(String name: List.of("BEAVER COUNTY", "GRIM"))
+				assertTrue(Files.isRegularFile(dataPath.resolve("address").resolve(name + ".1")));
+			assertTrue(Files.isRegularFile(dataPath.resolve("province.1")));
+		}
+	}
+
+	boolean hasDeltas(String indexName) throws IOException {
+		try(Database database = pdb.getDatabase("main")) {
+			return Files.isRegularFile(DatabaseSupport.getDatabaseDeltasPath(database.getDatabasePath(), indexName, database.getCommit()));
+		}
+	}
+
 	void createPdb() throws IOException {
-		pdbPath = jimfs.getPath("/pdb");
+		pdbPath = jimfs.getPath(pdbRoot);
 		
 
 		KeyIndex<?>[] keyIndexes = new KeyIndex<?>[] {
 			new GroupIdIndex(),
+			new GroupNumberIndex(),
 			new AddressIndex(),
 			new ProvinceCodeIndex()
 		};
 
-		pdb = new Pdb(pdbPath, keyIndexes);
+		pdb = new Pdb(pdbPath, keyIndexes, lazyRecovery);
+		pdb.setDeltaCommits(deltaCommits);
+		pdb.setPackedFileIndexes(packedFileIndexes);
+		pdb.setIndexPartitions(indexPartitions);
 		
 		assertTrue(Files.isDirectory(pdbPath));
 	}
@@ -146,6 +327,114 @@ class PdbApplicationTests {
 		}
 	}
 	
+	void addFilesConcurrently() throws Exception {
+
+		try(Database database = pdb.getDatabase("main")) {
+			CompletableFuture<Void> addressCommit = CompletableFuture.runAsync(() -> {
+				try {
+					Transaction transaction = database.beginTransaction();
+					for(String name: List.of("BEAVER COUNTY", "GRIM")) {
+						Path resourcePath = Paths.get(ClassLoader.getSystemResource("data/init/" + name).toURI());
+						transaction.copyFile(resourcePath, jimfs.getPath("address", name), false);
+					}
+					transaction.commit();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+
+			CompletableFuture<Void> provinceCommit = CompletableFuture.runAsync(() -> {
+				try {
+					Transaction transaction = database.beginTransaction();
+					transaction.copyInputStream(ClassLoader.getSystemResource("data/init/province").openStream(), jimfs.getPath("province"));
+					assertEquals(1L, transaction.commitAsync().get());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+
+			CompletableFuture.allOf(addressCommit, provinceCommit).join();
+
+			// both transactions are merged in the same commit
+			Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(database.getDatabasePath());
+			assertTrue(Files.isRegularFile(dataPath.resolve("address").resolve("BEAVER COUNTY.1")));
+			assertTrue(Files.isRegularFile(dataPath.resolve("address").resolve("GRIM.1")));
+			assertTrue(Files.isRegularFile(dataPath.resolve("province.1")));
+		}
+	}
+
+	void republishFiles() throws Exception {
+
+		try(Database database = pdb.getDatabase("main")) {
+			Path sourcePath = jimfs.getPath("/republish-source");
+			Files.createDirectories(sourcePath);
+			for(String name: List.of("BEAVER COUNTY", "GRIM"))
+				Files.copy(Paths.get(ClassLoader.getSystemResource("data/init/" + name).toURI()), sourcePath.resolve(name));
+
+			Transaction transaction = database.beginTransaction();
+			transaction.copyInputStream(ClassLoader.getSystemResource("data/init/province").openStream(), jimfs.getPath("province"));
+			assertThrows(IllegalArgumentException.class, () -> transaction.copyDir(sourcePath, jimfs.getPath("address"), false, 0));
+			transaction.copyDir(sourcePath, jimfs.getPath("address"), false, 2);
+			assertEquals(2L, transaction.commitAsync().get());
+
+			// the unchanged files are dropped from the commit
+			Path dataPath = DatabaseSupport.getDatabaseDataDirectoryPath(database.getDatabasePath());
+			assertTrue(Files.isRegularFile(dataPath.resolve("province.1")));
+			assertFalse(Files.exists(dataPath.resolve("province.2")));
+			assertTrue(Files.isRegularFile(dataPath.resolve("address").resolve("GRIM.1")));
+			assertFalse(Files.exists(dataPath.resolve("address").resolve("GRIM.2")));
+		}
+	}
+
+	void appendFiles() throws Exception {
+
+		Path appendedPath = jimfs.getPath("/province-appended");
+		try(InputStream input = ClassLoader.getSystemResource("data/init/province").openStream()) {
+			Files.write(appendedPath, input.readAllBytes());
+		}
+		Files.writeString(appendedPath, "YT|Yukon\n", StandardOpenOption.APPEND);
+
+		try(Database database = pdb.getDatabase("main")) {
+			Transaction transaction = database.beginTransaction();
+			transaction.appendFile(appendedPath, jimfs.getPath("province"), false);
+			assertEquals(3L, transaction.commitAsync().get());
+
+			// the staging commit is deleted before the commit completes
+			assertFalse(Files.exists(DatabaseSupport.getDatabaseCommitDirectoryPath(database.getDatabasePath())));
+		}
+
+		try(Database database = pdb.getDatabase("main")) {
+			assertTrue(Files.isRegularFile(DatabaseSupport.getDatabaseDataDirectoryPath(database.getDatabasePath()).resolve("province.3")));
+
+			Stream<MatchedRecord<String>> result = database.lookup("provinceCode", Arrays.asList("ON", "YT"));
+			assertEquals(2, result.filter(rec -> rec.getDataFilePath() != null).count());
+		}
+
+		// the second append extends a version with a content hash and links its file index
+		Files.writeString(appendedPath, "NU|Nunavut\nNT\n", StandardOpenOption.APPEND);
+		try(Database database = pdb.getDatabase("main")) {
+			Transaction transaction = database.beginTransaction();
+			transaction.appendFile(appendedPath, jimfs.getPath("province"), false);
+			assertEquals(4L, transaction.commitAsync().get());
+		}
+
+		try(Database database = pdb.getDatabase("main")) {
+			Path databasePath = database.getDatabasePath();
+			Path relativeFilePath = jimfs.getPath("province.4");
+			assertTrue(Files.isRegularFile(DatabaseSupport.getFileIndexTailPath(databasePath, relativeFilePath, "provinceCode")));
+
+			Stream<MatchedRecord<String>> result = database.lookup("provinceCode", Arrays.asList("ON", "YT", "NU"));
+			assertEquals(3, result.filter(rec -> rec.getDataFilePath() != null).count());
+
+			// a missing covered value is read back from the file index as missing
+			List<MatchedRecord<String>> records = database.lookup("provinceCode", List.of("NT"), List.of("name"))
+					.filter(rec -> rec.getDataFilePath() != null).toList();
+			assertEquals(1, records.size());
+			assertTrue(records.get(0).getFields().containsKey("name"));
+			assertNull(records.get(0).getFields().get("name"));
+		}
+	}
+
 	void queryData(long expectedFoundCount, long expectedNotFoundCount) throws IOException {
 		
 		LookupFunction<String> lookupFunction = LookupFunction.lookupKeyFunction("groupId", this::groupId, 
@@ -169,6 +458,16 @@ class PdbApplicationTests {
 		try(Database database = pdb.getDatabase("main")) {
 			Stream<MatchedRecord<String>> result = database.lookup("provinceCode", Arrays.asList("ON", "QC", "AB"));
 			assertEquals(3, result.filter(rec -> rec.getDataFilePath() != null).count());
+
+			// the covered fields are answered from the file indexes
+			Map<String, String> provinceNames = database.lookup("provinceCode", Arrays.asList("ON", "QC", "AB"), List.of("name"))
+					.filter(rec -> rec.getDataFilePath() != null)
+					.collect(Collectors.toMap(rec -> rec.getKey(), rec -> rec.getFields().get("name"), (name1, name2) -> name2));
+			assertEquals(Map.of("ON", "Ontario", "QC", "Quebec", "AB", "Alberta"), provinceNames);
+			assertThrows(IllegalArgumentException.class, () -> database.lookup("provinceCode", List.of("ON"), List.of("capital")));
+
+			// the hash indexes support only point lookups
+			assertThrows(UnsupportedOperationException.class, () -> database.streamOrdered("provinceCode"));
 		}
 	}
 	
@@ -201,6 +500,40 @@ class PdbApplicationTests {
 
 			count = database.streamOrdered("groupId", "999999").count();
 			assertEquals(0, count);
+
+			// the long keys are in numeric order
+			database.<Long>streamOrdered("groupNumber").reduce((r1, r2) -> {
+				
+				assertTrue(r1.getKey() <= r2.getKey());
+				return r2;
+			});
+
+			count = database.streamOrdered("groupNumber").count();
+			assertEquals(34947, count);
+
+			assertEquals(database.lookup("groupId", List.of("2545387", "926340", "999999")).filter(rec -> rec.getDataFilePath() != null).count(),
+					database.lookup("groupNumber", LongStream.of(999999, 926340, 2545387)).filter(rec -> rec.getDataFilePath() != null).count());
+			assertThrows(IllegalArgumentException.class, () -> database.lookup("groupId", LongStream.of(926340)));
+
+			// the nearest key lookups return the records of the greatest or least key for each key
+			assertEquals(database.lookup("groupNumber", LongStream.of(2545387)).count(),
+					database.lookupFloor("groupNumber", List.of(2545387L)).count());
+			long lastKey = database.<Long>streamReversed("groupNumber").findFirst().get().getKey();
+			List<MatchedRecord<Long>> floorRecords = database.lookupFloor("groupNumber", List.of(Long.MAX_VALUE)).toList();
+			assertFalse(floorRecords.isEmpty());
+			assertTrue(floorRecords.stream().allMatch(rec -> rec.getKey() == Long.MAX_VALUE && rec.getMatchedKey() == lastKey
+					&& new GroupNumberIndexer().keyFromLine(rec.getRecord()).getAsLong() == lastKey));
+			assertTrue(database.lookupCeiling("groupNumber", List.of(Long.MAX_VALUE)).allMatch(rec -> rec.getDataFilePath() == null && rec.getMatchedKey() == null));
+			long firstKey = database.<Long>streamOrdered("groupNumber").findFirst().get().getKey();
+			List<MatchedRecord<Long>> ceilingRecords = database.lookupCeiling("groupNumber", List.of(-1L)).toList();
+			assertFalse(ceilingRecords.isEmpty());
+			assertTrue(ceilingRecords.stream().allMatch(rec -> rec.getKey() == -1L && rec.getMatchedKey() == firstKey
+					&& new GroupNumberIndexer().keyFromLine(rec.getRecord()).getAsLong() == firstKey));
+
+			List<ResponseItem<String>> response = LookupFunction.<String, Long>lookupFloorKeyFunction("groupNumber", Long::valueOf, null)
+					.lookup(database, Stream.of(Long.toString(Long.MAX_VALUE), "-1")).toList();
+			assertTrue(response.stream().anyMatch(item -> item.getReferenceData().equals(Long.toString(Long.MAX_VALUE)) && item.getRecord() != null));
+			assertTrue(response.stream().anyMatch(item -> item.getReferenceData().equals("-1") && item.getRecord() == null));
 		}
 	}
 
@@ -310,6 +643,21 @@ class PdbApplicationTests {
 		}
 	}
 
+	void deleteFiles() throws IOException {
+		try(Database database = pdb.getDatabase("main")) {
+			Transaction transaction = database.beginTransaction();
+			transaction.deleteFile(jimfs.getPath("province"));
+			transaction.deleteDir(jimfs.getPath("address"));
+			transaction.commit();
+		}
+
+		try(Database database = pdb.getDatabase("main")) {
+			assertEquals(0, database.lookup("provinceCode", Arrays.asList("ON", "QC", "AB")).filter(rec -> rec.getDataFilePath() != null).count());
+			assertEquals(0, database.streamOrdered("groupId").count());
+			assertFalse(database.notEmpty());
+		}
+	}
+
 	void deleteDatabase() throws IOException {
 		pdb.deleteDatabase("main");
 		
@@ -1,11 +1,12 @@
 package org.merfu.pdb;
 
 import java.nio.file.Path;
+import java.util.List;
 
 import org.merfu.pdb.KeyIndexer;
-import org.merfu.pdb.StringIndex;
+import org.merfu.pdb.StringHashIndex;
 
-public class ProvinceCodeIndex extends StringIndex {
+public class ProvinceCodeIndex extends StringHashIndex {
 
 	@Override
 	public String getName() {
@@ -13,6 +14,11 @@ public class ProvinceCodeIndex extends StringIndex {
 		return "provinceCode";
 	}
 
+	@Override
+	public List<String> getCoveredFields() {
+		return List.of("name");
+	}
+
 	@Override
 	public boolean canIndex(Path relativePath, boolean isDirectory) {
 		return "province".equals(relativePath.getName(0).toString());
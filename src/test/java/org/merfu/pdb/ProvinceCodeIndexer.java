@@ -13,6 +13,12 @@ public class ProvinceCodeIndexer extends StringIndexer {
 		return provinceCode.isBlank() ? null : provinceCode;
 	}
 
+	@Override
+	public String[] coveredFieldsFromLine(String line) {
+		int endProvinceCodeIdx = line.indexOf("|");
+		return new String[] { endProvinceCodeIdx >= 0 ? line.substring(endProvinceCodeIdx + 1) : null };
+	}
+
 	@Override
 	public FileFormat getFileFormat() {
 		